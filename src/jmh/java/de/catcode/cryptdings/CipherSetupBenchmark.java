@@ -0,0 +1,69 @@
+package de.catcode.cryptdings;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aufwand für {@link Cipher#getInstance(String)} und {@link Cipher#init(int, java.security.Key, java.security.spec.AlgorithmParameterSpec)}.
+ * <p>
+ * GCM verweigert beim Verschlüsseln eine erneute Initialisierung mit gleichem Schlüssel und gleicher IV, deshalb wird
+ * die IV bei jedem Aufruf hochgezählt.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CipherSetupBenchmark {
+
+    private static final String AES_GCM_OPERATION_MODE = "AES/GCM/NoPadding";
+
+    private SecretKey secretKey;
+    private Cipher reusedCipher;
+    private long counter;
+
+    @Setup
+    public void setUp() throws Exception {
+        final Crypter crypter = new Crypter();
+        secretKey = crypter.deriveFromPassword("test123", crypter.generateRandomSalt());
+        reusedCipher = Cipher.getInstance(AES_GCM_OPERATION_MODE);
+    }
+
+    @Benchmark
+    public Cipher getInstance() throws Exception {
+        return Cipher.getInstance(AES_GCM_OPERATION_MODE);
+    }
+
+    @Benchmark
+    public Cipher getInstanceAndInit() throws Exception {
+        final Cipher cipher = Cipher.getInstance(AES_GCM_OPERATION_MODE);
+        cipher.init(Cipher.ENCRYPT_MODE, secretKey, nextParameterSpec());
+        return cipher;
+    }
+
+    @Benchmark
+    public Cipher initReused() throws Exception {
+        reusedCipher.init(Cipher.ENCRYPT_MODE, secretKey, nextParameterSpec());
+        return reusedCipher;
+    }
+
+    private GCMParameterSpec nextParameterSpec() {
+        final byte[] iv = ByteBuffer.allocate(12).putLong(4, ++counter).array();
+        return new GCMParameterSpec(128, iv);
+    }
+}
@@ -0,0 +1,44 @@
+package de.catcode.cryptdings;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.SecretKey;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dauer einer Schlüsselableitung mit PBKDF2 in Abhängigkeit der Iterationen. 65536 entspricht dem Wert in {@link Crypter}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeyDerivationBenchmark {
+
+    @Param({"1000", "10000", "65536", "210000"})
+    private int iterations;
+
+    private final Crypter crypter = new Crypter();
+    private byte[] salt;
+
+    @Setup
+    public void setUp() {
+        salt = crypter.generateRandomSalt();
+    }
+
+    @Benchmark
+    public SecretKey deriveFromPassword() {
+        return crypter.deriveFromPassword("test123", salt, iterations);
+    }
+}
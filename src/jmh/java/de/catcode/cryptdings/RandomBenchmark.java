@@ -0,0 +1,53 @@
+package de.catcode.cryptdings;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.spec.IvParameterSpec;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kosten für Salt und IV. {@link Crypter} erzeugt dafür bei jedem Aufruf einen neuen {@link SecureRandom}, zum Vergleich
+ * wird ein gemeinsam genutzter {@link SecureRandom} gemessen.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RandomBenchmark {
+
+    private final Crypter crypter = new Crypter();
+    private final SecureRandom sharedSecureRandom = new SecureRandom();
+
+    @Benchmark
+    public byte[] generateRandomSalt() {
+        return crypter.generateRandomSalt();
+    }
+
+    @Benchmark
+    public IvParameterSpec createRandomIV() {
+        return crypter.createRandomIV();
+    }
+
+    @Benchmark
+    public byte[] sharedSecureRandom() {
+        final byte[] bytes = new byte[12];
+        sharedSecureRandom.nextBytes(bytes);
+        return bytes;
+    }
+
+    @Benchmark
+    public SecureRandom newSecureRandom() {
+        return new SecureRandom();
+    }
+}
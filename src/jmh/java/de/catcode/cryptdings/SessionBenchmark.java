@@ -0,0 +1,90 @@
+package de.catcode.cryptdings;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Nachrichten pro Sekunde für kleine Nachrichten, {@link CryptoSession} im Vergleich zu
+ * {@link Crypter#encrypt(java.io.InputStream, java.io.OutputStream, SecretKey, byte[])} pro Nachricht.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionBenchmark {
+
+    @Param({"200"})
+    private int size;
+
+    private final Crypter crypter = new Crypter();
+    private byte[] message;
+    private byte[] salt;
+    private SecretKey secretKey;
+    private CryptoSession session;
+    private byte[] record;
+
+    @Setup
+    public void setUp() {
+        message = new byte[size];
+        new Random(42).nextBytes(message);
+        salt = crypter.generateRandomSalt();
+        secretKey = crypter.deriveFromPassword("test123", salt);
+        // kein Limit, damit lange Messläufe die Session nicht erschöpfen
+        session = new CryptoSession(crypter, "test123", Long.MAX_VALUE);
+        record = session.seal(message);
+    }
+
+    @Benchmark
+    public byte[] crypterEncrypt() {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(size + 36);
+        crypter.encrypt(new ByteArrayInputStream(message), outputStream, secretKey, salt);
+        return outputStream.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] sessionSeal() {
+        return session.seal(message);
+    }
+
+    @Benchmark
+    public int sessionSealByteBuffer(final Buffers buffers) {
+        buffers.output.clear();
+        return session.seal(buffers.input.clear(), buffers.output);
+    }
+
+    @Benchmark
+    public byte[] sessionOpen() {
+        return session.open(record);
+    }
+
+    @State(Scope.Thread)
+    public static class Buffers {
+
+        private ByteBuffer input;
+        private ByteBuffer output;
+
+        @Setup
+        public void setUp(final SessionBenchmark benchmark) {
+            input = ByteBuffer.allocateDirect(benchmark.size);
+            output = ByteBuffer.allocateDirect(benchmark.size + CryptoSession.OVERHEAD);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package de.catcode.cryptdings;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durchsatz von {@link Crypter#encrypt(InputStream, OutputStream, SecretKey, byte[])} und
+ * {@link Crypter#decrypt(InputStream, OutputStream, String)} für verschiedene Nutzlastgrößen.
+ * <p>
+ * Die Schlüsselableitung beim Entschlüsseln läuft über einen {@link DerivedKeyCache} und wird so nur einmal pro Trial
+ * bezahlt, sie wird im {@link KeyDerivationBenchmark} gemessen. Bytes pro Sekunde ergeben sich aus ops/s * size.
+ * Für die Allokationsrate mit {@code -prof gc} starten. Für 1 GiB werden einige GiB Heap benötigt, da das alte Format beim
+ * Entschlüsseln das komplette Chiffrat im Cipher puffert.
+ * <p>
+ * Über {@code format} werden neben den Streams auch die schnelleren Wege gemessen:
+ * <ul>
+ *     <li>{@code parallel}: {@link ParallelCrypter} auf dem {@link ForkJoinPool#commonPool()}. Die Skalierung über die Kerne
+ *     zeigt sich mit {@code -jvmArgsAppend -Djava.util.concurrent.ForkJoinPool.common.parallelism=n}.</li>
+ *     <li>{@code channel}: die Channel Methoden mit direkten Puffern, im alten Format ohne Kompression.</li>
+ *     <li>{@code mapped}: {@link Crypter#encryptMapped} auf einer temporären Datei. Entschlüsselt wird über den Channel
+ *     aus einer Datei, da es kein memory-mapped Entschlüsseln gibt.</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms6g", "-Xmx6g"})
+@State(Scope.Benchmark)
+public class ThroughputBenchmark {
+
+    @Param({"64", "1024", "65536", "1048576", "1073741824"})
+    private int size;
+
+    @Param({"legacy", "segmented", "parallel", "channel", "mapped"})
+    private String format;
+
+    private final Crypter crypter = new Crypter(new DerivedKeyCache(1, Duration.ofHours(1)));
+    private final ParallelCrypter parallelCrypter = new ParallelCrypter(crypter, ForkJoinPool.commonPool(),
+            ParallelCrypter.DEFAULT_SEGMENT_SIZE, 2 * Runtime.getRuntime().availableProcessors());
+    private byte[] salt;
+    private SecretKey secretKey;
+    private byte[] block;
+    private byte[] encrypted;
+    private Path plainFile;
+    private Path encryptedFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        salt = crypter.generateRandomSalt();
+        secretKey = crypter.deriveFromPassword("test123", salt);
+        // Große Nutzlasten werden aus einem wiederholten Block von höchstens 1 MiB erzeugt, damit sie nicht komplett im Heap liegen.
+        block = new byte[Math.min(size, 1024 * 1024)];
+        new Random(42).nextBytes(block);
+
+        final ByteArrayOutputStream encryptedOutputStream = new ByteArrayOutputStream();
+        encrypt(encryptedOutputStream);
+        encrypted = encryptedOutputStream.toByteArray();
+
+        if ("mapped".equals(format)) {
+            plainFile = Files.createTempFile("throughput", ".txt");
+            Files.copy(new RepeatingInputStream(block, size), plainFile, StandardCopyOption.REPLACE_EXISTING);
+            encryptedFile = Files.write(Files.createTempFile("throughput", ".enc"), encrypted);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (plainFile != null) {
+            Files.delete(plainFile);
+            Files.delete(encryptedFile);
+        }
+    }
+
+    @Benchmark
+    public void encrypt() throws IOException {
+        if ("mapped".equals(format)) {
+            try (final FileChannel inputChannel = FileChannel.open(plainFile)) {
+                crypter.encryptMapped(inputChannel, new NullChannel(), secretKey, salt, 64 * 1024);
+            }
+            return;
+        }
+        encrypt(OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public void decrypt() throws IOException {
+        switch (format) {
+            case "parallel" -> parallelCrypter.decrypt(new ByteArrayInputStream(encrypted), OutputStream.nullOutputStream(), "test123");
+            case "channel" -> crypter.decrypt(Channels.newChannel(new ByteArrayInputStream(encrypted)), new NullChannel(), "test123");
+            case "mapped" -> {
+                try (final FileChannel inputChannel = FileChannel.open(encryptedFile)) {
+                    crypter.decrypt(inputChannel, new NullChannel(), "test123");
+                }
+            }
+            default -> crypter.decrypt(new ByteArrayInputStream(encrypted), OutputStream.nullOutputStream(), "test123");
+        }
+    }
+
+    private void encrypt(final OutputStream outputStream) {
+        final InputStream inputStream = new RepeatingInputStream(block, size);
+        switch (format) {
+            case "segmented" -> crypter.encryptSegmented(inputStream, outputStream, secretKey, salt);
+            case "parallel" -> parallelCrypter.encrypt(inputStream, outputStream, secretKey, salt);
+            // Der Eingabe Channel kopiert direkt aus dem Block in den direkten Puffer, ohne Umweg über einen Stream.
+            case "channel", "mapped" -> crypter.encrypt(new RepeatingChannel(block, size), Channels.newChannel(outputStream), secretKey, salt);
+            default -> crypter.encrypt(inputStream, outputStream, secretKey, salt);
+        }
+    }
+
+    /**
+     * Liefert {@code length} Bytes, indem der gegebene Block wiederholt wird.
+     */
+    private static final class RepeatingInputStream extends InputStream {
+
+        private final byte[] block;
+        private long remaining;
+        private int position;
+
+        private RepeatingInputStream(final byte[] block, final long length) {
+            this.block = block;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (remaining == 0) {
+                return -1;
+            }
+            final int count = (int) Math.min(Math.min(len, remaining), block.length - position);
+            System.arraycopy(block, position, b, off, count);
+            position = (position + count) % block.length;
+            remaining -= count;
+            return count;
+        }
+    }
+
+    /**
+     * Liefert wie {@link RepeatingInputStream} {@code length} Bytes als Channel.
+     */
+    private static final class RepeatingChannel implements ReadableByteChannel {
+
+        private final byte[] block;
+        private long remaining;
+        private int position;
+
+        private RepeatingChannel(final byte[] block, final long length) {
+            this.block = block;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) {
+            if (remaining == 0) {
+                return -1;
+            }
+            final int count = (int) Math.min(Math.min(dst.remaining(), remaining), block.length - position);
+            dst.put(block, position, count);
+            position = (position + count) % block.length;
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Verwirft alle Bytes, ohne sie wie {@link Channels#newChannel(OutputStream)} erst in ein Array zu kopieren.
+     */
+    private static final class NullChannel implements WritableByteChannel {
+
+        @Override
+        public int write(final ByteBuffer src) {
+            final int count = src.remaining();
+            src.position(src.limit());
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,422 @@
+package de.catcode.cryptdings;
+
+import javax.crypto.SecretKey;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Ver- und entschlüsselt alle Dateien eines Verzeichnisbaums in einer Pipeline.
+ * <p>
+ * Jede Datei durchläuft drei Stufen: Lesen auf den I/O-Threads, Schlüsselableitung und Cipher auf den Workern und
+ * Schreiben wieder auf den I/O-Threads. Die Stufen verschiedener Dateien überlappen sich, so dass Datenträger und
+ * Prozessoren gleichzeitig beschäftigt sind. Höchstens {@code maxFilesInFlight} Dateien sind gleichzeitig in der
+ * Pipeline, ist sie voll, wartet das Einreihen weiterer Dateien (ein Stall). Dateien bis {@link #MAX_IN_MEMORY_SIZE}
+ * werden dabei im Speicher gehalten, größere liest und schreibt der Worker direkt als Strom. Für jede Datei im Speicher
+ * wird vor dem Lesen das {@value #IN_MEMORY_FACTOR}-fache ihrer Größe von {@code maxBytesInFlight} reserviert, da beim
+ * Cipher Eingabe, Ergebnis und dessen Kopie gleichzeitig im Heap liegen. Ist nicht genug frei, wartet das Einreihen
+ * ebenfalls. Dateien, die allein schon mehr brauchen würden, werden als Strom verarbeitet.
+ * <p>
+ * Verschlüsselt wird im segmentierten Format ({@link Crypter#encryptSegmented(InputStream, OutputStream, SecretKey, byte[])})
+ * mit eigenem Salt pro Datei, an den Dateinamen wird {@link #ENCRYPTED_SUFFIX} angehängt. Beim Entschlüsseln wird die
+ * Endung wieder entfernt. Fehler einzelner Dateien brechen den Lauf nicht ab, sondern werden in
+ * {@link BulkStatistics#getFailures()} gesammelt. Ein nicht lesbares Verzeichnis beendet den Durchlauf und landet dort
+ * ebenfalls, die bis dahin gefundenen Dateien werden noch fertig verarbeitet.
+ * <p>
+ * Pro Datei wird ein {@link FileCryptedEvent} und pro Stall ein {@link PipelineStallEvent} an JFR gemeldet.
+ */
+public class BulkCrypter implements AutoCloseable {
+
+    public static final String ENCRYPTED_SUFFIX = ".enc";
+
+    // Größere Dateien würden bei mehreren Dateien in der Pipeline zu viel Speicher belegen.
+    static final long MAX_IN_MEMORY_SIZE = 64L * 1024 * 1024;
+    static final int IN_MEMORY_FACTOR = 3;
+    // Die Bytes werden in KiB als Genehmigungen des Semaphore gezählt, damit auch große Limits in ein int passen.
+    private static final int PERMIT_SIZE = 1024;
+
+    private final Crypter crypter;
+    private final int maxFilesInFlight;
+    private final long maxBytesInFlight;
+    private final ExecutorService workers;
+    private final ExecutorService io;
+    private final boolean virtualThreads;
+
+    private enum Operation {
+        ENCRYPT, DECRYPT
+    }
+
+    /**
+     * Eine Datei auf dem Weg durch die Pipeline. {@code content} ist {@code null}, wenn die Datei als Strom verarbeitet wird.
+     */
+    private static final class Job {
+
+        private final Path source;
+        private final Path target;
+        private final long reservedBytes;
+        private final FileCryptedEvent event = new FileCryptedEvent();
+        private byte[] content;
+        private long bytesRead;
+        private long bytesWritten;
+        private long queuedAt;
+
+        private Job(final Path source, final Path target, final long reservedBytes) {
+            this.source = source;
+            this.target = target;
+            this.reservedBytes = reservedBytes;
+        }
+    }
+
+    /**
+     * Erzeugt einen BulkCrypter, der für Dateien im Speicher höchstens ein Viertel des maximalen Heaps reserviert.
+     *
+     * @see #BulkCrypter(Crypter, int, int, int, long, boolean)
+     */
+    public BulkCrypter(final Crypter crypter, final int workerThreads, final int ioThreads, final int maxFilesInFlight,
+                       final boolean virtualThreads) {
+        this(crypter, workerThreads, ioThreads, maxFilesInFlight, defaultMaxBytesInFlight(), virtualThreads);
+    }
+
+    /**
+     * @param crypter          der {@link Crypter} für Schlüsselableitung, Iterationen und Kompression
+     * @param workerThreads    die Anzahl der Threads für Schlüsselableitung und Cipher
+     * @param ioThreads        die Anzahl der Threads für Lesen und Schreiben, wenn keine virtuellen Threads verwendet werden
+     * @param maxFilesInFlight die maximale Anzahl Dateien, die gleichzeitig in der Pipeline sind
+     * @param maxBytesInFlight die maximale Anzahl Bytes Heap, die für im Speicher gehaltene Dateien reserviert wird
+     * @param virtualThreads   ob für Lesen und Schreiben virtuelle Threads verwendet werden sollen. Steht die Laufzeitumgebung
+     *                         diese nicht zur Verfügung (vor Java 21), werden {@code ioThreads} normale Threads verwendet,
+     *                         siehe {@link #isUsingVirtualThreads()}.
+     */
+    public BulkCrypter(final Crypter crypter, final int workerThreads, final int ioThreads, final int maxFilesInFlight,
+                       final long maxBytesInFlight, final boolean virtualThreads) {
+        if (workerThreads <= 0 || ioThreads <= 0 || maxFilesInFlight <= 0) {
+            throw new IllegalArgumentException("workerThreads, ioThreads and maxFilesInFlight must be positive.");
+        }
+        if (maxBytesInFlight < PERMIT_SIZE || maxBytesInFlight / PERMIT_SIZE > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("maxBytesInFlight must be between " + PERMIT_SIZE + " and "
+                    + (long) Integer.MAX_VALUE * PERMIT_SIZE + " but was " + maxBytesInFlight + ".");
+        }
+        this.crypter = crypter;
+        this.maxFilesInFlight = maxFilesInFlight;
+        this.maxBytesInFlight = maxBytesInFlight / PERMIT_SIZE * PERMIT_SIZE;
+        this.workers = Executors.newFixedThreadPool(workerThreads, daemonThreadFactory("bulk-worker-"));
+        final ExecutorService virtualThreadExecutor = virtualThreads ? newVirtualThreadPerTaskExecutor() : null;
+        this.virtualThreads = virtualThreadExecutor != null;
+        this.io = virtualThreadExecutor != null ? virtualThreadExecutor : Executors.newFixedThreadPool(ioThreads, daemonThreadFactory("bulk-io-"));
+    }
+
+    /**
+     * @return ob Lesen und Schreiben tatsächlich auf virtuellen Threads laufen
+     */
+    public boolean isUsingVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Verschlüsselt alle regulären Dateien unterhalb von {@code source} nach {@code target}. Die Verzeichnisstruktur bleibt erhalten.
+     * Ist {@code source} eine Datei, wird diese in das Verzeichnis {@code target} verschlüsselt.
+     *
+     * @throws IOException wenn {@code source} nicht durchlaufen werden kann
+     */
+    public BulkStatistics encrypt(final Path source, final Path target, final String password) throws IOException {
+        return run(Operation.ENCRYPT, source, target, password);
+    }
+
+    /**
+     * Entschlüsselt alle regulären Dateien unterhalb von {@code source} nach {@code target}. Die Verzeichnisstruktur bleibt erhalten.
+     * Ist {@code source} eine Datei, wird diese in das Verzeichnis {@code target} entschlüsselt.
+     *
+     * @throws IOException wenn {@code source} nicht durchlaufen werden kann
+     */
+    public BulkStatistics decrypt(final Path source, final Path target, final String password) throws IOException {
+        return run(Operation.DECRYPT, source, target, password);
+    }
+
+    /**
+     * Beendet Worker und I/O-Threads.
+     */
+    @Override
+    public void close() {
+        workers.shutdownNow();
+        io.shutdownNow();
+    }
+
+    private BulkStatistics run(final Operation operation, final Path source, final Path target, final String password) throws IOException {
+        final BulkStatistics statistics = new BulkStatistics();
+        final Semaphore inFlight = new Semaphore(maxFilesInFlight);
+        final int bytePermits = (int) (maxBytesInFlight / PERMIT_SIZE);
+        final Semaphore bytesInFlight = new Semaphore(bytePermits);
+        final long start = System.nanoTime();
+
+        // Liegt das Ziel innerhalb der Quelle, dürfen die gerade geschriebenen Dateien nicht erneut verarbeitet werden.
+        final Path absoluteTarget = target.toAbsolutePath().normalize();
+        try (final Stream<Path> files = Files.walk(source)) {
+            final Iterator<Path> iterator = files
+                    .filter(file -> !file.toAbsolutePath().normalize().startsWith(absoluteTarget))
+                    .filter(Files::isRegularFile)
+                    .iterator();
+            while (iterator.hasNext()) {
+                final Path file = iterator.next();
+                final long reservedBytes;
+                try {
+                    reservedBytes = reservedBytes(Files.size(file));
+                } catch (IOException e) {
+                    statistics.addFailure(file, e);
+                    continue;
+                }
+                final int permits = (int) ((reservedBytes + PERMIT_SIZE - 1) / PERMIT_SIZE);
+                acquire(inFlight, 1, 0, statistics);
+                try {
+                    acquire(bytesInFlight, permits, reservedBytes, statistics);
+                } catch (InterruptedException e) {
+                    inFlight.release();
+                    throw e;
+                }
+                statistics.addBytesInFlight(reservedBytes);
+                // Ist die Quelle selbst eine Datei, wäre der relative Pfad leer.
+                final Path relative = file.equals(source) ? source.getFileName() : source.relativize(file);
+                final Job job = new Job(file, target.resolve(targetName(operation, relative)), reservedBytes);
+                job.event.begin();
+                CompletableFuture.runAsync(() -> read(job, statistics), io)
+                        .thenRunAsync(() -> transform(operation, job, password, statistics), workers)
+                        .thenRunAsync(() -> write(job, statistics), io)
+                        .whenComplete((ignored, throwable) -> {
+                            complete(operation, job, throwable, statistics);
+                            statistics.addBytesInFlight(-reservedBytes);
+                            bytesInFlight.release(permits);
+                            inFlight.release();
+                        });
+            }
+        } catch (UncheckedIOException e) {
+            // Ein nicht lesbares Verzeichnis beendet den Durchlauf. Die bereits eingereihten Dateien laufen trotzdem durch.
+            statistics.addFailure(failedPath(e.getCause(), source), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the pipeline.");
+        } finally {
+            // Alle Genehmigungen zurückzubekommen heißt, dass alle Dateien fertig sind. Auch bei einem Abbruch darf
+            // keine Datei mehr geschrieben werden, nachdem run zurückgekehrt ist.
+            inFlight.acquireUninterruptibly(maxFilesInFlight);
+            inFlight.release(maxFilesInFlight);
+        }
+        statistics.setElapsedNanos(System.nanoTime() - start);
+        return statistics;
+    }
+
+    private static Path failedPath(final IOException exception, final Path source) {
+        if (exception instanceof FileSystemException fileSystemException && fileSystemException.getFile() != null) {
+            return Path.of(fileSystemException.getFile());
+        }
+        return source;
+    }
+
+    /**
+     * @return die für eine Datei dieser Größe zu reservierenden Bytes, 0 wenn sie als Strom verarbeitet wird
+     */
+    private long reservedBytes(final long size) {
+        if (size > MAX_IN_MEMORY_SIZE || size * IN_MEMORY_FACTOR > maxBytesInFlight) {
+            return 0;
+        }
+        return size * IN_MEMORY_FACTOR;
+    }
+
+    private void acquire(final Semaphore semaphore, final int permits, final long bytes, final BulkStatistics statistics)
+            throws InterruptedException {
+        if (semaphore.tryAcquire(permits)) {
+            return;
+        }
+        final PipelineStallEvent event = new PipelineStallEvent();
+        event.begin();
+        final long start = System.nanoTime();
+        semaphore.acquire(permits);
+        statistics.addStall(System.nanoTime() - start);
+        event.filesInFlight = maxFilesInFlight;
+        event.bytesRequested = bytes;
+        event.commit();
+    }
+
+    private void read(final Job job, final BulkStatistics statistics) {
+        final long start = System.nanoTime();
+        try {
+            if (job.reservedBytes > 0) {
+                job.content = Files.readAllBytes(job.source);
+                job.bytesRead = job.content.length;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        job.queuedAt = System.nanoTime();
+        statistics.addRead(job.queuedAt - start);
+    }
+
+    private void transform(final Operation operation, final Job job, final String password, final BulkStatistics statistics) {
+        statistics.addCipherQueue(System.nanoTime() - job.queuedAt);
+        try {
+            if (job.content != null) {
+                // Passend dimensioniert, damit beim Schreiben nicht umkopiert wird. Die Tags machen weniger als 1 % aus.
+                final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(job.content.length + job.content.length / 100 + 1024);
+                transform(operation, new ByteArrayInputStream(job.content), outputStream, job, password, statistics);
+                // Die Eingabe freigeben, bevor das Ergebnis kopiert wird.
+                job.content = null;
+                job.content = outputStream.toByteArray();
+            } else {
+                // Große Dateien werden im Worker als Strom verarbeitet, Lesen und Schreiben zählen dann zum Cipher.
+                Files.createDirectories(job.target.getParent());
+                try (final InputStream inputStream = new BufferedInputStream(Files.newInputStream(job.source));
+                     final OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(job.target))) {
+                    transform(operation, inputStream, outputStream, job, password, statistics);
+                } catch (IOException | RuntimeException e) {
+                    // Kein halb geschriebenes Ergebnis zurücklassen.
+                    Files.deleteIfExists(job.target);
+                    throw e;
+                }
+                job.bytesRead = Files.size(job.source);
+                job.bytesWritten = Files.size(job.target);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        job.queuedAt = System.nanoTime();
+    }
+
+    private void transform(final Operation operation, final InputStream inputStream, final OutputStream outputStream, final Job job,
+                           final String password, final BulkStatistics statistics) throws IOException {
+        final long start = System.nanoTime();
+        final SecretKey secretKey;
+        final byte[] salt;
+        final CiphertextHeader header;
+        if (operation == Operation.ENCRYPT) {
+            header = null;
+            salt = crypter.generateRandomSalt();
+            secretKey = crypter.deriveFromPassword(password, salt);
+        } else {
+            header = CiphertextHeader.read(inputStream);
+            salt = header.salt();
+            secretKey = crypter.obtainKey(password, salt, header.iterations());
+        }
+        final long derived = System.nanoTime();
+
+        if (operation == Operation.ENCRYPT) {
+            crypter.encryptSegmented(inputStream, outputStream, secretKey, salt);
+        } else {
+            crypter.decrypt(inputStream, outputStream, header, secretKey);
+        }
+        final long end = System.nanoTime();
+
+        statistics.addKeyDerivation(derived - start);
+        statistics.addCipher(end - derived);
+        job.event.keyDerivationDuration = derived - start;
+        job.event.cipherDuration = end - derived;
+    }
+
+    private void write(final Job job, final BulkStatistics statistics) {
+        final long start = System.nanoTime();
+        statistics.addWriteQueue(start - job.queuedAt);
+        if (job.content == null) {
+            return;
+        }
+        try {
+            Files.createDirectories(job.target.getParent());
+            Files.write(job.target, job.content);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        job.bytesWritten = job.content.length;
+        job.content = null;
+        statistics.addWrite(System.nanoTime() - start);
+    }
+
+    private static void complete(final Operation operation, final Job job, final Throwable throwable, final BulkStatistics statistics) {
+        if (throwable == null) {
+            statistics.addFile(job.bytesRead, job.bytesWritten);
+        } else {
+            statistics.addFailure(job.source, unwrap(throwable));
+        }
+        job.content = null;
+        job.event.end();
+        if (job.event.shouldCommit()) {
+            job.event.operation = operation.name();
+            job.event.path = job.source.toString();
+            job.event.bytesRead = job.bytesRead;
+            job.event.bytesWritten = job.bytesWritten;
+            job.event.succeeded = throwable == null;
+            job.event.commit();
+        }
+    }
+
+    private static long defaultMaxBytesInFlight() {
+        return Math.max(PERMIT_SIZE, Math.min(Runtime.getRuntime().maxMemory() / 4, (long) Integer.MAX_VALUE * PERMIT_SIZE));
+    }
+
+    private static Exception unwrap(final Throwable throwable) {
+        Throwable cause = throwable;
+        if (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof UncheckedIOException uncheckedIOException) {
+            return uncheckedIOException.getCause();
+        }
+        return cause instanceof Exception exception ? exception : new RuntimeException(cause);
+    }
+
+    private static Path targetName(final Operation operation, final Path relative) {
+        final String fileName = relative.getFileName().toString();
+        if (operation == Operation.ENCRYPT) {
+            return relative.resolveSibling(fileName + ENCRYPTED_SUFFIX);
+        }
+        if (fileName.endsWith(ENCRYPTED_SUFFIX) && fileName.length() > ENCRYPTED_SUFFIX.length()) {
+            return relative.resolveSibling(fileName.substring(0, fileName.length() - ENCRYPTED_SUFFIX.length()));
+        }
+        return relative;
+    }
+
+    /**
+     * Virtuelle Threads gibt es erst ab Java 21, das Projekt wird aber für Java 17 übersetzt. Deshalb wird die Factory
+     * per Reflection gesucht.
+     *
+     * @return der Executor oder {@code null}, wenn die Laufzeitumgebung keine virtuellen Threads bietet
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            // Java 19 und 20 ohne --enable-preview
+            if (e.getCause() instanceof UnsupportedOperationException) {
+                return null;
+            }
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        }
+    }
+
+    private static ThreadFactory daemonThreadFactory(final String prefix) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, prefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,198 @@
+package de.catcode.cryptdings;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Kennzahlen eines Laufs von {@link BulkCrypter}.
+ * <p>
+ * Die Zeiten der einzelnen Stufen sind über alle Threads summiert und können deshalb größer als die Laufzeit sein.
+ * Die Wartezeiten vor Cipher und Schreiben zeigen, welche Stufe der Engpass ist: Liegen die Dateien lange vor dem
+ * Cipher, fehlen Worker, liegen sie lange vor dem Schreiben, ist der Datenträger zu langsam.
+ */
+public class BulkStatistics {
+
+    private static final double MIB = 1024 * 1024;
+
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder readNanos = new LongAdder();
+    private final LongAdder keyDerivationNanos = new LongAdder();
+    private final LongAdder cipherNanos = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+    private final LongAdder cipherQueueNanos = new LongAdder();
+    private final LongAdder writeQueueNanos = new LongAdder();
+    private final LongAdder stallCount = new LongAdder();
+    private final LongAdder stallNanos = new LongAdder();
+    private final AtomicLong bytesInFlight = new AtomicLong();
+    private final LongAccumulator maxBytesInFlight = new LongAccumulator(Math::max, 0);
+    private final Map<Path, Exception> failures = new ConcurrentHashMap<>();
+    private volatile long elapsedNanos;
+
+    void addFile(final long read, final long written) {
+        files.increment();
+        bytesRead.add(read);
+        bytesWritten.add(written);
+    }
+
+    void addRead(final long nanos) {
+        readNanos.add(nanos);
+    }
+
+    void addKeyDerivation(final long nanos) {
+        keyDerivationNanos.add(nanos);
+    }
+
+    void addCipher(final long nanos) {
+        cipherNanos.add(nanos);
+    }
+
+    void addWrite(final long nanos) {
+        writeNanos.add(nanos);
+    }
+
+    void addCipherQueue(final long nanos) {
+        cipherQueueNanos.add(nanos);
+    }
+
+    void addWriteQueue(final long nanos) {
+        writeQueueNanos.add(nanos);
+    }
+
+    void addStall(final long nanos) {
+        stallCount.increment();
+        stallNanos.add(nanos);
+    }
+
+    void addBytesInFlight(final long bytes) {
+        maxBytesInFlight.accumulate(bytesInFlight.addAndGet(bytes));
+    }
+
+    void addFailure(final Path path, final Exception exception) {
+        failures.put(path, exception);
+    }
+
+    void setElapsedNanos(final long elapsedNanos) {
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return die Anzahl erfolgreich verarbeiteter Dateien
+     */
+    public long getFiles() {
+        return files.sum();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public Duration getReadTime() {
+        return Duration.ofNanos(readNanos.sum());
+    }
+
+    public Duration getKeyDerivationTime() {
+        return Duration.ofNanos(keyDerivationNanos.sum());
+    }
+
+    public Duration getCipherTime() {
+        return Duration.ofNanos(cipherNanos.sum());
+    }
+
+    public Duration getWriteTime() {
+        return Duration.ofNanos(writeNanos.sum());
+    }
+
+    public Duration getCipherQueueTime() {
+        return Duration.ofNanos(cipherQueueNanos.sum());
+    }
+
+    public Duration getWriteQueueTime() {
+        return Duration.ofNanos(writeQueueNanos.sum());
+    }
+
+    /**
+     * @return wie oft das Einreihen weiterer Dateien warten musste, weil die Pipeline voll war
+     */
+    public long getStallCount() {
+        return stallCount.sum();
+    }
+
+    public Duration getStallTime() {
+        return Duration.ofNanos(stallNanos.sum());
+    }
+
+    /**
+     * @return die höchste Anzahl Bytes, die gleichzeitig für im Speicher gehaltene Dateien reserviert war
+     */
+    public long getMaxBytesInFlight() {
+        return maxBytesInFlight.get();
+    }
+
+    /**
+     * @return die fehlgeschlagenen Dateien mit dem jeweiligen Fehler
+     */
+    public Map<Path, Exception> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    public Duration getElapsedTime() {
+        return Duration.ofNanos(elapsedNanos);
+    }
+
+    /**
+     * @return die gelesenen Bytes pro Sekunde bezogen auf die Laufzeit
+     */
+    public double getBytesPerSecond() {
+        return elapsedNanos == 0 ? 0 : getBytesRead() * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * @return eine mehrzeilige Zusammenfassung für die Ausgabe auf der Konsole
+     */
+    public String summary() {
+        return String.format("""
+                        Dateien:                  %d (%d fehlgeschlagen)
+                        Gelesen:                  %.1f MiB
+                        Geschrieben:              %.1f MiB
+                        Laufzeit:                 %s
+                        Durchsatz:                %.1f MiB/s
+                        Schlüsselableitung:       %s
+                        Cipher:                   %s
+                        Lesen:                    %s
+                        Schreiben:                %s
+                        Wartezeit vor Cipher:     %s
+                        Wartezeit vor Schreiben:  %s
+                        Stalls:                   %d (%s)
+                        Speicher in Pipeline:     %.1f MiB (maximal)
+                        """,
+                getFiles(), failures.size(),
+                getBytesRead() / MIB,
+                getBytesWritten() / MIB,
+                format(getElapsedTime()),
+                getBytesPerSecond() / MIB,
+                format(getKeyDerivationTime()),
+                format(getCipherTime()),
+                format(getReadTime()),
+                format(getWriteTime()),
+                format(getCipherQueueTime()),
+                format(getWriteQueueTime()),
+                getStallCount(), format(getStallTime()),
+                getMaxBytesInFlight() / MIB);
+    }
+
+    private static String format(final Duration duration) {
+        return String.format("%.3f s", duration.toNanos() / 1e9);
+    }
+}
@@ -0,0 +1,220 @@
+package de.catcode.cryptdings;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Der Header vor dem Chiffrat. Er beschreibt alles, was zum Entschlüsseln außer dem Passwort benötigt wird.
+ * <p>
+ * Aktuelles Format (Version 2):
+ * Magic(8)+Version(1)+Flags(1)+KDF(1)+Iterationen(4)+Saltlänge(1)+Salt(n)+[Segmentgröße(4)]+IV(12)
+ * <p>
+ * Die Segmentgröße ist nur vorhanden, wenn das Flag {@link #FLAG_SEGMENTED} gesetzt ist. {@link #FLAG_COMPRESSED} zeigt
+ * an, dass der Klartext vor der Verschlüsselung komprimiert wurde ({@link Compression}). Unbekannte Flags und
+ * KDF Kennungen werden abgelehnt, damit eine ältere Version eine neuere Datei nicht falsch interpretiert.
+ * <p>
+ * Gelesen werden außerdem
+ * <ul>
+ *     <li>das ursprüngliche Format Salt(8)+IV(12) ohne Magic, mit den Standard-Iterationen von {@link Crypter}</li>
+ *     <li>Version 1 des segmentierten Formats Magic(8)+Version(1)+Segmentgröße(4)+Salt(8)+IV(12)</li>
+ * </ul>
+ * Ab Version 2 geht der komplette Header als AAD ({@link #aad()}) in die Tags ein. Eine Änderung an Flags, Segmentgröße,
+ * KDF Parametern oder IV fällt dadurch beim Entschlüsseln auf. Die älteren Formate haben keinen geschützten Header.
+ *
+ * @param version     die Version des Headers, 0 steht für das ursprüngliche Format ohne Magic
+ * @param flags       Bitmaske der Flags
+ * @param kdf         die Kennung der Schlüsselableitung
+ * @param iterations  die Anzahl der Iterationen der Schlüsselableitung
+ * @param salt        das Salt der Schlüsselableitung
+ * @param segmentSize die Anzahl Bytes Klartext pro Segment, 0 wenn nicht segmentiert
+ * @param iv          die IV
+ */
+record CiphertextHeader(int version, int flags, int kdf, int iterations, byte[] salt, int segmentSize, byte[] iv) {
+
+    // Die ersten 8 Bytes einer Datei im alten Format sind das zufällige Salt. Eine Verwechslung mit der Magic ist
+    // daher nur mit einer Wahrscheinlichkeit von 2^-64 möglich.
+    static final byte[] MAGIC = {'C', 'R', 'Y', 'P', 'T', 'D', 'N', 'G'};
+    static final int CURRENT_VERSION = 2;
+
+    static final int FLAG_SEGMENTED = 1;
+    static final int FLAG_COMPRESSED = 2;
+    private static final int KNOWN_FLAGS = FLAG_SEGMENTED | FLAG_COMPRESSED;
+
+    static final int KDF_PBKDF2_HMAC_SHA256 = 1;
+
+    static final int IV_LENGTH = 12;
+    static final int MIN_SALT_LENGTH = 8;
+    static final int MAX_SALT_LENGTH = 64;
+    // Obergrenze, damit ein manipulierter Header die Entschlüsselung nicht beliebig lange blockiert.
+    static final int MAX_ITERATIONS = 10_000_000;
+
+    private static final int LEGACY_SALT_LENGTH = 8;
+
+    /**
+     * Header für einen einzelnen GCM Strom im aktuellen Format.
+     */
+    static CiphertextHeader stream(final int iterations, final byte[] salt, final boolean compressed, final byte[] iv) {
+        return new CiphertextHeader(CURRENT_VERSION, compressed ? FLAG_COMPRESSED : 0, KDF_PBKDF2_HMAC_SHA256, iterations, salt, 0, iv);
+    }
+
+    /**
+     * Header für das segmentierte Format ({@link SegmentedFormat}) im aktuellen Format.
+     */
+    static CiphertextHeader segmented(final int iterations, final byte[] salt, final boolean compressed, final int segmentSize,
+                                      final byte[] iv) {
+        final int flags = FLAG_SEGMENTED | (compressed ? FLAG_COMPRESSED : 0);
+        return new CiphertextHeader(CURRENT_VERSION, flags, KDF_PBKDF2_HMAC_SHA256, iterations, salt, segmentSize, iv);
+    }
+
+    boolean isSegmented() {
+        return (flags & FLAG_SEGMENTED) != 0;
+    }
+
+    boolean isCompressed() {
+        return (flags & FLAG_COMPRESSED) != 0;
+    }
+
+    int encryptedSegmentSize() {
+        return segmentSize + SegmentedFormat.TAG_LENGTH;
+    }
+
+    /**
+     * @return die Länge des Headers in Bytes, also der Offset des Chiffrats
+     */
+    int length() {
+        return switch (version) {
+            case 0 -> LEGACY_SALT_LENGTH + IV_LENGTH;
+            case 1 -> MAGIC.length + 1 + 4 + LEGACY_SALT_LENGTH + IV_LENGTH;
+            default -> MAGIC.length + 1 + 1 + 1 + 4 + 1 + salt.length + (isSegmented() ? 4 : 0) + IV_LENGTH;
+        };
+    }
+
+    /**
+     * Schreibt den Header im aktuellen Format.
+     */
+    void write(final OutputStream outputStream) throws IOException {
+        if (version != CURRENT_VERSION) {
+            throw new IllegalStateException("Only version " + CURRENT_VERSION + " can be written.");
+        }
+        final DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        dataOutputStream.write(MAGIC);
+        dataOutputStream.writeByte(version);
+        dataOutputStream.writeByte(flags);
+        dataOutputStream.writeByte(kdf);
+        dataOutputStream.writeInt(iterations);
+        dataOutputStream.writeByte(salt.length);
+        dataOutputStream.write(salt);
+        if (isSegmented()) {
+            dataOutputStream.writeInt(segmentSize);
+        }
+        dataOutputStream.write(iv);
+        dataOutputStream.flush();
+    }
+
+    /**
+     * Liefert die Bytes, die als Additional Authenticated Data an den Cipher gehen. Ab Version 2 ist das der serialisierte
+     * Header, der genau den gelesenen bzw. geschriebenen Bytes entspricht. Ältere Versionen wurden ohne AAD verschlüsselt.
+     */
+    byte[] aad() {
+        if (version < CURRENT_VERSION) {
+            return new byte[0];
+        }
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(length());
+        try {
+            write(outputStream);
+        } catch (IOException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Liest einen Header in einem der unterstützten Formate. Es werden genau die Bytes des Headers gelesen.
+     *
+     * @throws IOException wenn der Header unvollständig ist oder nicht unterstützte Werte enthält
+     */
+    static CiphertextHeader read(final InputStream inputStream) throws IOException {
+        final DataInputStream dataInputStream = new DataInputStream(inputStream);
+        // Salt und Magic sind beide 8 Bytes lang.
+        final byte[] magicOrSalt = new byte[MAGIC.length];
+        dataInputStream.readFully(magicOrSalt);
+
+        if (!Arrays.equals(MAGIC, magicOrSalt)) {
+            final byte[] iv = new byte[IV_LENGTH];
+            dataInputStream.readFully(iv);
+            return new CiphertextHeader(0, 0, KDF_PBKDF2_HMAC_SHA256, Crypter.ITERATIONS, magicOrSalt, 0, iv);
+        }
+
+        final int version = dataInputStream.readUnsignedByte();
+        return switch (version) {
+            case 1 -> readVersion1(dataInputStream);
+            case 2 -> readVersion2(dataInputStream);
+            default -> throw new IOException("Unsupported format version " + version + ".");
+        };
+    }
+
+    private static CiphertextHeader readVersion1(final DataInputStream dataInputStream) throws IOException {
+        final int segmentSize = readSegmentSize(dataInputStream);
+        final byte[] salt = new byte[LEGACY_SALT_LENGTH];
+        final byte[] iv = new byte[IV_LENGTH];
+        dataInputStream.readFully(salt);
+        dataInputStream.readFully(iv);
+        return new CiphertextHeader(1, FLAG_SEGMENTED, KDF_PBKDF2_HMAC_SHA256, Crypter.ITERATIONS, salt, segmentSize, iv);
+    }
+
+    private static CiphertextHeader readVersion2(final DataInputStream dataInputStream) throws IOException {
+        final int flags = dataInputStream.readUnsignedByte();
+        if ((flags & ~KNOWN_FLAGS) != 0) {
+            throw new IOException("Unsupported flags " + Integer.toBinaryString(flags) + ".");
+        }
+        final int kdf = dataInputStream.readUnsignedByte();
+        if (kdf != KDF_PBKDF2_HMAC_SHA256) {
+            throw new IOException("Unsupported key derivation function " + kdf + ".");
+        }
+        final int iterations = dataInputStream.readInt();
+        if (iterations <= 0 || iterations > MAX_ITERATIONS) {
+            throw new IOException("Invalid iteration count " + iterations + ".");
+        }
+        final int saltLength = dataInputStream.readUnsignedByte();
+        if (saltLength < MIN_SALT_LENGTH || saltLength > MAX_SALT_LENGTH) {
+            throw new IOException("Invalid salt length " + saltLength + ".");
+        }
+        final byte[] salt = new byte[saltLength];
+        dataInputStream.readFully(salt);
+        final int segmentSize = (flags & FLAG_SEGMENTED) != 0 ? readSegmentSize(dataInputStream) : 0;
+        final byte[] iv = new byte[IV_LENGTH];
+        dataInputStream.readFully(iv);
+        return new CiphertextHeader(2, flags, kdf, iterations, salt, segmentSize, iv);
+    }
+
+    private static int readSegmentSize(final DataInputStream dataInputStream) throws IOException {
+        final int segmentSize = dataInputStream.readInt();
+        if (segmentSize <= 0 || segmentSize > SegmentedFormat.MAX_SEGMENT_SIZE) {
+            throw new IOException("Invalid segment size " + segmentSize + ".");
+        }
+        return segmentSize;
+    }
+
+    /**
+     * Prüft die Iterationen beim Verschlüsseln, damit keine Dateien entstehen, die {@link #read(InputStream)} ablehnt.
+     */
+    static void checkIterations(final int iterations) {
+        if (iterations <= 0 || iterations > MAX_ITERATIONS) {
+            throw new IllegalArgumentException("Iterations must be between 1 and " + MAX_ITERATIONS + " but was " + iterations + ".");
+        }
+    }
+
+    /**
+     * Prüft das Salt beim Verschlüsseln, damit keine Dateien entstehen, die {@link #read(InputStream)} ablehnt.
+     */
+    static void checkSalt(final byte[] salt) {
+        if (salt.length < MIN_SALT_LENGTH || salt.length > MAX_SALT_LENGTH) {
+            throw new IllegalArgumentException("Salt length must be between " + MIN_SALT_LENGTH + " and " + MAX_SALT_LENGTH + " but was " + salt.length + ".");
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package de.catcode.cryptdings;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Optionale Kompression des Klartexts vor der Verschlüsselung.
+ * <p>
+ * Komprimiert wird mit {@link Deflater} im zlib Format als Strom über den gesamten Klartext, die Segmentierung des
+ * Chiffrats bleibt davon unberührt. Ob komprimiert wurde, steht im Flag {@link CiphertextHeader#FLAG_COMPRESSED}.
+ * <p>
+ * Da der Header vor dem Chiffrat geschrieben wird, muss die Entscheidung vorher fallen. Dafür wird der Anfang des
+ * Klartexts probeweise komprimiert. Spart das nicht mindestens 10 %, z.B. bei bereits komprimierten Daten, wird der
+ * Klartext unverändert verschlüsselt und die Zeit für die Kompression gespart.
+ */
+final class Compression {
+
+    // Größe der Probe, anhand derer über die Kompression entschieden wird.
+    static final int SAMPLE_SIZE = 64 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Compression() {
+    }
+
+    /**
+     * Der für die Verschlüsselung vorbereitete Klartext. Das Schließen gibt den {@link Deflater} frei, schließt aber
+     * nicht den ursprünglichen InputStream.
+     *
+     * @param stream     der Klartext, bei {@code compressed} komprimiert
+     * @param compressed ob komprimiert wird
+     */
+    record Input(InputStream stream, boolean compressed) implements Closeable {
+
+        @Override
+        public void close() throws IOException {
+            if (compressed) {
+                stream.close();
+            }
+        }
+    }
+
+    /**
+     * Erlaubt sind die Stufen 1 bis 9, {@link Deflater#DEFAULT_COMPRESSION} und {@link Deflater#NO_COMPRESSION}, wobei
+     * letztere die Kompression abschaltet.
+     */
+    static void checkLevel(final int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be between -1 and 9 but was " + level + ".");
+        }
+    }
+
+    /**
+     * Bereitet den Klartext vor. Bei abgeschalteter Kompression wird der InputStream unverändert geliefert, sonst wird
+     * anhand einer Probe entschieden, ob sich die Kompression lohnt.
+     */
+    static Input prepare(final InputStream inputStream, final int level) throws IOException {
+        if (level == Deflater.NO_COMPRESSION) {
+            return new Input(inputStream, false);
+        }
+        final byte[] sample = inputStream.readNBytes(SAMPLE_SIZE);
+        final InputStream plain = new SequenceInputStream(new ByteArrayInputStream(sample), inputStream);
+        if (!isWorthCompressing(sample, level)) {
+            return new Input(plain, false);
+        }
+        return new Input(new DeflatingInputStream(plain, new Deflater(level)), true);
+    }
+
+    /**
+     * Liefert einen OutputStream, der komprimierte Daten entpackt auf {@code outputStream} schreibt. Das Schließen
+     * schreibt den Rest, gibt den {@link Inflater} frei und schließt nicht den darunterliegenden OutputStream.
+     */
+    static OutputStream inflating(final OutputStream outputStream) {
+        return new InflatingOutputStream(outputStream, new Inflater());
+    }
+
+    private static boolean isWorthCompressing(final byte[] sample, final int level) {
+        final Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            final byte[] discarded = new byte[BUFFER_SIZE];
+            long compressedSize = 0;
+            while (!deflater.finished()) {
+                compressedSize += deflater.deflate(discarded);
+            }
+            return compressedSize * 10 < sample.length * 9L;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static final class DeflatingInputStream extends DeflaterInputStream {
+
+        private DeflatingInputStream(final InputStream inputStream, final Deflater deflater) {
+            super(inputStream, deflater, BUFFER_SIZE);
+        }
+
+        @Override
+        public void close() {
+            def.end();
+        }
+    }
+
+    private static final class InflatingOutputStream extends InflaterOutputStream {
+
+        private InflatingOutputStream(final OutputStream outputStream, final Inflater inflater) {
+            super(outputStream, inflater, BUFFER_SIZE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                finish();
+                if (!inf.finished()) {
+                    throw new IOException("Compressed content is incomplete.");
+                }
+                out.flush();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+}
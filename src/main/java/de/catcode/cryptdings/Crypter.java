@@ -4,16 +4,24 @@ import javax.crypto.*;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.zip.Deflater;
 
 /**
  * Enthält die entsprechenden kryptografischen Methoden.
@@ -34,19 +42,83 @@ import java.security.spec.KeySpec;
  */
 public class Crypter {
 
-    private static final int ITERATIONS = 65536;
+    // Standardwert, wenn nichts anderes konfiguriert ist. Dateien ohne Header mit Iterationen wurden immer damit verschlüsselt.
+    static final int ITERATIONS = 65536;
     // Schlüssellänger für AES Secret Key. 256bit, wobei die Blocklänge bei AES immer 128bit ist. Nicht verwechseln.
     private static final int KEY_LENGTH = 256;
 
     private static final String AES_GCM_OPERATION_MODE = "AES/GCM/NoPadding";
 
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    // Obergrenze für die Puffer der Channel Methoden, damit zusammen mit dem Tag kein Überlauf entsteht.
+    static final int MAX_BUFFER_SIZE = 64 * 1024 * 1024;
+    // Bei memory-mapped Eingaben wird die Datei in Fenstern dieser Größe eingeblendet.
+    private static final long MAPPED_WINDOW_SIZE = 256L * 1024 * 1024;
+
+    // Direkte Puffer sind teuer in der Erzeugung und werden deshalb pro Thread wiederverwendet.
+    private static final ThreadLocal<ByteBuffer> INPUT_BUFFER = new ThreadLocal<>();
+    private static final ThreadLocal<ByteBuffer> OUTPUT_BUFFER = new ThreadLocal<>();
+    // Größere Puffer, z.B. für große Segmente, würden sonst dauerhaft in jedem Thread eines Pools liegen bleiben.
+    private static final int MAX_CACHED_BUFFER_SIZE = 1024 * 1024 + 64;
+
+    // Zeit einer einzelnen Messung bei der Kalibrierung. Kürzere Messungen sind zu ungenau.
+    private static final long CALIBRATION_SAMPLE_NANOS = 20_000_000L;
+    private static final int MIN_CALIBRATED_ITERATIONS = 10_000;
+
+    private final int iterations;
+    private final DerivedKeyCache derivedKeyCache;
+    private final int compressionLevel;
+
+    public Crypter() {
+        this(null);
+    }
+
+    /**
+     * @param derivedKeyCache optionaler Cache für die beim Entschlüsseln abgeleiteten Schlüssel, {@code null} schaltet den Cache ab
+     */
+    public Crypter(final DerivedKeyCache derivedKeyCache) {
+        this(ITERATIONS, derivedKeyCache);
+    }
+
+    /**
+     * @param iterations      die Iterationen für {@link #deriveFromPassword(String, byte[])}, siehe {@link #calibrateIterations(Duration)}.
+     *                        Sie werden im Header des Chiffrats abgelegt. Beim Entschlüsseln gilt immer der Wert aus dem Header.
+     * @param derivedKeyCache optionaler Cache für die beim Entschlüsseln abgeleiteten Schlüssel, {@code null} schaltet den Cache ab
+     */
+    public Crypter(final int iterations, final DerivedKeyCache derivedKeyCache) {
+        this(iterations, derivedKeyCache, Deflater.NO_COMPRESSION);
+    }
+
+    /**
+     * @param iterations       die Iterationen für {@link #deriveFromPassword(String, byte[])}, siehe {@link #calibrateIterations(Duration)}.
+     * @param derivedKeyCache  optionaler Cache für die beim Entschlüsseln abgeleiteten Schlüssel, {@code null} schaltet den Cache ab
+     * @param compressionLevel die Stufe des {@link Deflater} von 1 bis 9 oder {@link Deflater#DEFAULT_COMPRESSION}, mit der
+     *                         der Klartext vor dem Verschlüsseln über Streams komprimiert wird. {@link Deflater#NO_COMPRESSION}
+     *                         schaltet die Kompression ab. Daten, die sich kaum komprimieren lassen, werden unverändert verschlüsselt.
+     */
+    public Crypter(final int iterations, final DerivedKeyCache derivedKeyCache, final int compressionLevel) {
+        CiphertextHeader.checkIterations(iterations);
+        Compression.checkLevel(compressionLevel);
+        this.iterations = iterations;
+        this.derivedKeyCache = derivedKeyCache;
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Leitet den Schlüssel mit den Iterationen dieses Crypters ab. Salt und Iterationen bleiben am Schlüssel und werden
+     * beim Verschlüsseln in den Header geschrieben, auch wenn dafür ein anderer Crypter verwendet wird.
+     */
     public SecretKey deriveFromPassword(final String password, final byte[] salt) {
+        return deriveFromPassword(password, salt, iterations);
+    }
+
+    SecretKey deriveFromPassword(final String password, final byte[] salt, final int iterations) {
 
         try {
             final SecretKeyFactory secretKeyFactory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-            final KeySpec keySpec = new PBEKeySpec(password.toCharArray(), salt, ITERATIONS, KEY_LENGTH);
+            final KeySpec keySpec = new PBEKeySpec(password.toCharArray(), salt, iterations, KEY_LENGTH);
             final SecretKey secretKey = secretKeyFactory.generateSecret(keySpec);
-            return new SecretKeySpec(secretKey.getEncoded(), "AES");
+            return new PasswordDerivedKey(secretKey.getEncoded(), salt, iterations);
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
         } catch (InvalidKeySpecException e) {
@@ -55,6 +127,77 @@ public class Crypter {
         return null;
     }
 
+    /**
+     * Liefert den Schlüssel zum Entschlüsseln. Ist ein {@link DerivedKeyCache} gesetzt, wird dieser verwendet.
+     */
+    SecretKey obtainKey(final String password, final byte[] salt, final int iterations) {
+        if (derivedKeyCache == null) {
+            return deriveFromPassword(password, salt, iterations);
+        }
+        return derivedKeyCache.get(password, salt, iterations, () -> deriveFromPassword(password, salt, iterations));
+    }
+
+    /**
+     * Liefert die Iterationen für den Header. Bei einem mit {@link #deriveFromPassword(String, byte[])} abgeleiteten
+     * Schlüssel sind das die Iterationen seiner Ableitung, bei anderen Schlüsseln die dieses Crypters.
+     *
+     * @throws IllegalArgumentException wenn der Schlüssel mit einem anderen Salt abgeleitet wurde
+     */
+    int headerIterations(final SecretKey secretKey, final byte[] salt) {
+        if (!(secretKey instanceof PasswordDerivedKey passwordDerivedKey)) {
+            return iterations;
+        }
+        if (!Arrays.equals(passwordDerivedKey.salt(), salt)) {
+            throw new IllegalArgumentException("Salt does not match the salt the key was derived with.");
+        }
+        return passwordDerivedKey.iterations();
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Ermittelt, wie viele Iterationen auf dieser Maschine in die gegebene Zeit für eine Schlüsselableitung passen.
+     * <p>
+     * Die Ableitung wird mit steigenden Iterationen gemessen, bis eine Messung lang genug für ein verlässliches Ergebnis ist.
+     * Von mehreren Messungen zählt die schnellste, das Ergebnis wird linear hochgerechnet. Interaktive Dienste können so
+     * z.B. 100 ms wählen, Batch-Jobs deutlich mehr. Das Ergebnis wird an {@link #Crypter(int, DerivedKeyCache)} übergeben.
+     *
+     * @param targetDuration die gewünschte Dauer einer Schlüsselableitung
+     * @return die Iterationen, mindestens 10000 und höchstens {@link CiphertextHeader#MAX_ITERATIONS}
+     */
+    public int calibrateIterations(final Duration targetDuration) {
+        if (targetDuration.isNegative() || targetDuration.isZero()) {
+            throw new IllegalArgumentException("targetDuration must be positive but was " + targetDuration + ".");
+        }
+        final byte[] salt = generateRandomSalt();
+
+        int sampleIterations = 1000;
+        long sampleNanos = measureDerivation(salt, sampleIterations);
+        while (sampleNanos < CALIBRATION_SAMPLE_NANOS && sampleIterations < CiphertextHeader.MAX_ITERATIONS / 2) {
+            sampleIterations *= 2;
+            sampleNanos = measureDerivation(salt, sampleIterations);
+        }
+        for (int i = 0; i < 3; i++) {
+            sampleNanos = Math.min(sampleNanos, measureDerivation(salt, sampleIterations));
+        }
+
+        final double iterationsPerNano = (double) sampleIterations / Math.max(1, sampleNanos);
+        final long calibrated = (long) (iterationsPerNano * targetDuration.toNanos());
+        return (int) Math.max(MIN_CALIBRATED_ITERATIONS, Math.min(CiphertextHeader.MAX_ITERATIONS, calibrated));
+    }
+
+    private long measureDerivation(final byte[] salt, final int sampleIterations) {
+        final long start = System.nanoTime();
+        deriveFromPassword("calibration", salt, sampleIterations);
+        return System.nanoTime() - start;
+    }
+
     public byte[] generateRandomSalt() {
         // Das Salt wird absichtlich als byte[] durch die Gegen gereicht um Längenprobleme mit dem Encoding zu vermeiden.
         // So können wir sicher sein, dass wir exakt 8 bytes verwenden. Das wird besonders beim Einlesen des Salts bei der Entschlüsselung wichtig.
@@ -68,11 +211,14 @@ public class Crypter {
      * Verschlüsselt den Inhalt eines eingehenden InputStreams und schreibt das Resultat auf den gegebenen OutputStream.
      * Es wird eine symmetrische Verschlüsselung (AES) durchgeführt. Als Betriebsmodus wird GCM (Galois Counter Mode) verwendet.
      * <p>
-     * Vor das Chiffrat werden das Salt und die IV gehanden. In alternativen Implementierungen könnte man über eine Base64 Kodierung des Salt und der IV nachdenken.
+     * Vor das Chiffrat wird ein Header mit den Parametern der Schlüsselableitung, dem Salt und der IV gehangen ({@link CiphertextHeader}).
+     * In alternativen Implementierungen könnte man über eine Base64 Kodierung des Salt und der IV nachdenken.
      * Das ist hier aber unnötig.
-     * Salt+IV+Cipher
+     * Header+Cipher
      * <p>
-     * Zum Entschlüsseln müssen zuerst das Salt und die IV gelesen werden.
+     * Ist eine Kompression eingestellt, wird der Klartext vorher komprimiert, sofern eine Probe vom Anfang sich dafür eignet.
+     * <p>
+     * Zum Entschlüsseln muss zuerst der Header gelesen werden.
      *
      * @param inputStream  die zu verschlüsselnden Daten als InputStream
      * @param outputStream der OutputStream auf den das Verschlüsselungsergebnis geschrieben werden soll
@@ -80,6 +226,7 @@ public class Crypter {
      * @param salt         Das zur {@link SecretKey} Erzeugung verwendete Salt.
      */
     public void encrypt(final InputStream inputStream, final OutputStream outputStream, final SecretKey secretKey, final byte[] salt) {
+        CiphertextHeader.checkSalt(salt);
 
         try {
             // https://en.wikipedia.org/wiki/Galois/Counter_Mode
@@ -90,11 +237,16 @@ public class Crypter {
             final Cipher cipher = Cipher.getInstance(AES_GCM_OPERATION_MODE);
             cipher.init(Cipher.ENCRYPT_MODE, secretKey, gcmParameterSpec);
 
-            try (final CipherOutputStream cipherOutputStream = new CipherOutputStream(outputStream, cipher)) {
-                // Der write des Salts und des IV muss auf dem outputStream und nicht auf dem cipherOutputStream erfolgen, weil diese nicht verschlüsselt werden sollen.
-                outputStream.write(salt);
-                outputStream.write(ivParameterSpec.getIV());
-                inputStream.transferTo(cipherOutputStream);
+            // Die Probe für die Kompression muss gelesen sein, bevor der CipherOutputStream entsteht. Schlägt das Lesen
+            // fehl, wird so kein Tag ohne Header auf den OutputStream geschrieben.
+            try (final Compression.Input input = Compression.prepare(inputStream, compressionLevel);
+                 final CipherOutputStream cipherOutputStream = new CipherOutputStream(outputStream, cipher)) {
+                final CiphertextHeader header = CiphertextHeader.stream(headerIterations(secretKey, salt), salt, input.compressed(),
+                        ivParameterSpec.getIV());
+                cipher.updateAAD(header.aad());
+                // Der write des Headers muss auf dem outputStream und nicht auf dem cipherOutputStream erfolgen, weil dieser nicht verschlüsselt werden soll.
+                header.write(outputStream);
+                input.stream().transferTo(cipherOutputStream);
             } catch (IOException e) {
                 throw new RuntimeException("Unhandled exception occurred.", e);
             }
@@ -109,8 +261,77 @@ public class Crypter {
         }
     }
 
+    /**
+     * Verschlüsselt den Inhalt eines eingehenden InputStreams im segmentierten Format mit der Standard-Segmentgröße von 64 KiB.
+     *
+     * @see #encryptSegmented(InputStream, OutputStream, SecretKey, byte[], int)
+     */
+    public void encryptSegmented(final InputStream inputStream, final OutputStream outputStream, final SecretKey secretKey, final byte[] salt) {
+        encryptSegmented(inputStream, outputStream, secretKey, salt, SegmentedFormat.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Verschlüsselt den Inhalt eines eingehenden InputStreams im segmentierten Format und schreibt das Resultat auf den gegebenen OutputStream.
+     * <p>
+     * Im Gegensatz zu {@link #encrypt(InputStream, OutputStream, SecretKey, byte[])} wird nicht ein einziger GCM Strom erzeugt,
+     * sondern der Klartext in Segmente fester Größe zerlegt, die jeweils einen eigenen Tag bekommen. Beim Entschlüsseln
+     * muss so nie mehr als ein Segment im Speicher gehalten werden. Der Aufbau ist in {@link SegmentedFormat} beschrieben.
+     * <p>
+     * Der OutputStream wird im Gegensatz zu {@link #encrypt(InputStream, OutputStream, SecretKey, byte[])} nicht geschlossen.
+     *
+     * @param inputStream  die zu verschlüsselnden Daten als InputStream
+     * @param outputStream der OutputStream auf den das Verschlüsselungsergebnis geschrieben werden soll
+     * @param secretKey    der {@link SecretKey} der zur Anwendung kommt
+     * @param salt         Das zur {@link SecretKey} Erzeugung verwendete Salt.
+     * @param segmentSize  die Anzahl Bytes Klartext pro Segment
+     */
+    public void encryptSegmented(final InputStream inputStream, final OutputStream outputStream, final SecretKey secretKey, final byte[] salt,
+                                 final int segmentSize) {
+        SegmentedFormat.checkSegmentSize(segmentSize);
+        CiphertextHeader.checkSalt(salt);
+        final byte[] iv = createRandomIV().getIV();
+
+        try (final Compression.Input input = Compression.prepare(inputStream, compressionLevel)) {
+            final Cipher cipher = Cipher.getInstance(AES_GCM_OPERATION_MODE);
+            final CiphertextHeader header = CiphertextHeader.segmented(headerIterations(secretKey, salt), salt, input.compressed(), segmentSize, iv);
+            header.write(outputStream);
+            final byte[] headerAad = header.aad();
+            final InputStream plainInputStream = input.stream();
+
+            // Es wird immer ein Byte mehr gelesen als in ein Segment passt. Nur so lässt sich erkennen, ob das aktuelle Segment das letzte ist.
+            final byte[] plainBuffer = new byte[segmentSize + 1];
+            final byte[] encryptedBuffer = new byte[segmentSize + SegmentedFormat.TAG_LENGTH];
+            int buffered = plainInputStream.readNBytes(plainBuffer, 0, plainBuffer.length);
+            long segmentIndex = 0;
+            while (true) {
+                final boolean last = buffered <= segmentSize;
+                SegmentedFormat.checkSegmentIndex(segmentIndex);
+                final int written = SegmentedFormat.sealSegment(cipher, secretKey, iv, headerAad, (int) segmentIndex, last,
+                        plainBuffer, 0, last ? buffered : segmentSize, encryptedBuffer, 0);
+                outputStream.write(encryptedBuffer, 0, written);
+                if (last) {
+                    break;
+                }
+                plainBuffer[0] = plainBuffer[segmentSize];
+                buffered = 1 + plainInputStream.readNBytes(plainBuffer, 1, segmentSize);
+                segmentIndex++;
+            }
+            outputStream.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        } catch (NoSuchPaddingException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        }
+    }
+
     /**
      * Entschlüsselt den eigenhenden InputStream und schreibt das Resultat auf den gegebenen OutputStream.
+     * <p>
+     * Das Format wird anhand des Headers ({@link CiphertextHeader}) erkannt, dessen Parameter für die Schlüsselableitung
+     * verwendet werden. Beim segmentierten Format wird Segment für Segment entschlüsselt und nur geprüfter Klartext
+     * geschrieben. Dateien im alten Format Salt+IV+Cipher ohne Header werden weiterhin gelesen.
      *
      * @param inputStream  die verschlüsselten Daten als InputStream
      * @param outputStream der OutputStream auf den das Entschlüsselungsergebnis geschrieben werden soll
@@ -118,18 +339,50 @@ public class Crypter {
      */
     public void decrypt(final InputStream inputStream, final OutputStream outputStream, final String password) {
 
-        final byte[] saltBytes = new byte[8];
-        final byte[] ivBytes = new byte[12];
+        final CiphertextHeader header;
+        try {
+            header = CiphertextHeader.read(inputStream);
+        } catch (IOException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        }
+        decrypt(inputStream, outputStream, header, password);
+    }
+
+    /**
+     * Entschlüsselt den InputStream, dessen Header bereits gelesen wurde.
+     */
+    void decrypt(final InputStream inputStream, final OutputStream outputStream, final CiphertextHeader header, final String password) {
+        decrypt(inputStream, outputStream, header, obtainKey(password, header.salt(), header.iterations()));
+    }
+
+    /**
+     * Entschlüsselt den InputStream, dessen Header bereits gelesen wurde, mit dem bereits abgeleiteten Schlüssel.
+     * Komprimierte Inhalte werden dabei entpackt.
+     */
+    void decrypt(final InputStream inputStream, final OutputStream outputStream, final CiphertextHeader header, final SecretKey secretKey) {
+        if (!header.isCompressed()) {
+            decryptCiphertext(inputStream, outputStream, header, secretKey);
+            return;
+        }
+        try (final OutputStream inflating = Compression.inflating(outputStream)) {
+            decryptCiphertext(inputStream, inflating, header, secretKey);
+        } catch (IOException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        }
+    }
+
+    private void decryptCiphertext(final InputStream inputStream, final OutputStream outputStream, final CiphertextHeader header,
+                                   final SecretKey secretKey) {
 
         try {
-            // man könnte noch überprüfen ob die bytes korrekt gelesen wurden. Ist mir aber erstmal egal.
-            // Deswegen meckert Sonar in der IDE
-            inputStream.read(saltBytes);
-            inputStream.read(ivBytes);
-            final SecretKey secretKey = deriveFromPassword(password, saltBytes);
-            final GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(128, ivBytes);
+            if (header.isSegmented()) {
+                decryptSegmented(inputStream, outputStream, header, secretKey);
+                return;
+            }
+            final GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(128, header.iv());
             final Cipher cipher = Cipher.getInstance(AES_GCM_OPERATION_MODE);
             cipher.init(Cipher.DECRYPT_MODE, secretKey, gcmParameterSpec);
+            cipher.updateAAD(header.aad());
 
             try (final CipherInputStream cipherInputStream = new CipherInputStream(inputStream, cipher)) {
                 cipherInputStream.transferTo(outputStream);
@@ -149,7 +402,320 @@ public class Crypter {
         }
     }
 
-    private IvParameterSpec createRandomIV() {
+    private void decryptSegmented(final InputStream inputStream, final OutputStream outputStream, final CiphertextHeader header,
+                                  final SecretKey secretKey) throws IOException, NoSuchPaddingException, NoSuchAlgorithmException {
+
+        final Cipher cipher = Cipher.getInstance(AES_GCM_OPERATION_MODE);
+        final byte[] headerAad = header.aad();
+
+        final int encryptedSegmentSize = header.encryptedSegmentSize();
+        final byte[] encryptedBuffer = new byte[encryptedSegmentSize + 1];
+        final byte[] plainBuffer = new byte[header.segmentSize()];
+        int buffered = inputStream.readNBytes(encryptedBuffer, 0, encryptedBuffer.length);
+        long segmentIndex = 0;
+        while (true) {
+            final boolean last = buffered <= encryptedSegmentSize;
+            SegmentedFormat.checkSegmentIndex(segmentIndex);
+            final int written = SegmentedFormat.openSegment(cipher, secretKey, header.iv(), headerAad, (int) segmentIndex, last,
+                    encryptedBuffer, 0, last ? buffered : encryptedSegmentSize, plainBuffer, 0);
+            outputStream.write(plainBuffer, 0, written);
+            if (last) {
+                break;
+            }
+            encryptedBuffer[0] = encryptedBuffer[encryptedSegmentSize];
+            buffered = 1 + inputStream.readNBytes(encryptedBuffer, 1, encryptedSegmentSize);
+            segmentIndex++;
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Verschlüsselt den Inhalt eines eingehenden Channels mit der Standard-Puffergröße von 64 KiB.
+     *
+     * @see #encrypt(ReadableByteChannel, WritableByteChannel, SecretKey, byte[], int)
+     */
+    public void encrypt(final ReadableByteChannel inputChannel, final WritableByteChannel outputChannel, final SecretKey secretKey, final byte[] salt) {
+        encrypt(inputChannel, outputChannel, secretKey, salt, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Verschlüsselt den Inhalt eines eingehenden Channels und schreibt das Resultat auf den gegebenen Channel.
+     * Das Ergebnis hat das gleiche Format Header+Cipher wie {@link #encrypt(InputStream, OutputStream, SecretKey, byte[])},
+     * wird aber nie komprimiert, damit die Daten ohne Umweg über Streams in die direkten Puffer gelesen werden können.
+     * <p>
+     * Statt über die Streams und deren interne Puffer zu gehen, wird mit {@link Cipher#update(ByteBuffer, ByteBuffer)} direkt
+     * zwischen zwei pro Thread wiederverwendeten direkten Puffern verschlüsselt. Die Channels werden nicht geschlossen.
+     *
+     * @param inputChannel  die zu verschlüsselnden Daten als Channel
+     * @param outputChannel der Channel auf den das Verschlüsselungsergebnis geschrieben werden soll
+     * @param secretKey     der {@link SecretKey} der zur Anwendung kommt
+     * @param salt          Das zur {@link SecretKey} Erzeugung verwendete Salt.
+     * @param bufferSize    die Größe der Puffer in Bytes
+     */
+    public void encrypt(final ReadableByteChannel inputChannel, final WritableByteChannel outputChannel, final SecretKey secretKey, final byte[] salt,
+                        final int bufferSize) {
+        checkBufferSize(bufferSize);
+        try {
+            final Cipher cipher = initEncryptCipher(outputChannel, secretKey, salt);
+            final ByteBuffer input = directBuffer(INPUT_BUFFER, bufferSize);
+            final ByteBuffer output = directBuffer(OUTPUT_BUFFER, cipher.getOutputSize(bufferSize));
+
+            while (inputChannel.read(input) >= 0) {
+                input.flip();
+                cipher.update(input, output);
+                input.compact();
+                writeFully(outputChannel, output);
+            }
+            input.flip();
+            cipher.doFinal(input, output);
+            writeFully(outputChannel, output);
+        } catch (IOException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        } catch (ShortBufferException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        } catch (IllegalBlockSizeException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        } catch (BadPaddingException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        }
+    }
+
+    /**
+     * Verschlüsselt den Inhalt einer Datei, die dafür memory-mapped eingeblendet wird. Die Datei wird ab ihrer aktuellen
+     * Position gelesen. Das spart gegenüber {@link #encrypt(ReadableByteChannel, WritableByteChannel, SecretKey, byte[])} das
+     * Kopieren in den Eingabepuffer.
+     *
+     * @param inputChannel  die zu verschlüsselnde Datei
+     * @param outputChannel der Channel auf den das Verschlüsselungsergebnis geschrieben werden soll
+     * @param secretKey     der {@link SecretKey} der zur Anwendung kommt
+     * @param salt          Das zur {@link SecretKey} Erzeugung verwendete Salt.
+     * @param bufferSize    die Größe des Ausgabepuffers in Bytes
+     */
+    public void encryptMapped(final FileChannel inputChannel, final WritableByteChannel outputChannel, final SecretKey secretKey, final byte[] salt,
+                              final int bufferSize) {
+        checkBufferSize(bufferSize);
+        try {
+            final Cipher cipher = initEncryptCipher(outputChannel, secretKey, salt);
+            final ByteBuffer output = directBuffer(OUTPUT_BUFFER, cipher.getOutputSize(bufferSize));
+
+            final long size = inputChannel.size();
+            for (long position = inputChannel.position(); position < size; position += MAPPED_WINDOW_SIZE) {
+                final MappedByteBuffer mapped = inputChannel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPED_WINDOW_SIZE, size - position));
+                while (mapped.position() < mapped.capacity()) {
+                    // Das Limit begrenzt die Eingabe pro Aufruf auf das, was in den Ausgabepuffer passt.
+                    mapped.limit(Math.min(mapped.position() + bufferSize, mapped.capacity()));
+                    cipher.update(mapped, output);
+                    writeFully(outputChannel, output);
+                }
+            }
+            inputChannel.position(size);
+            cipher.doFinal(ByteBuffer.allocate(0), output);
+            writeFully(outputChannel, output);
+        } catch (IOException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        } catch (ShortBufferException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        } catch (IllegalBlockSizeException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        } catch (BadPaddingException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        }
+    }
+
+    /**
+     * Entschlüsselt den Inhalt eines eingehenden Channels mit der Standard-Puffergröße von 64 KiB.
+     *
+     * @see #decrypt(ReadableByteChannel, WritableByteChannel, String, int)
+     */
+    public void decrypt(final ReadableByteChannel inputChannel, final WritableByteChannel outputChannel, final String password) {
+        decrypt(inputChannel, outputChannel, password, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Entschlüsselt den Inhalt eines eingehenden Channels und schreibt das Resultat auf den gegebenen Channel.
+     * Wie bei {@link #decrypt(InputStream, OutputStream, String)} werden das alte und das segmentierte Format erkannt und
+     * komprimierte Inhalte entpackt.
+     * <p>
+     * Beim alten Format hält der GCM Cipher des JDK das gesamte Chiffrat bis zum {@link Cipher#doFinal(ByteBuffer, ByteBuffer)}
+     * zurück, für den Klartext wird dann einmalig ein passender Puffer angelegt. Beim segmentierten Format
+     * bleibt der Speicherbedarf bei einem Segment. Die Channels werden nicht geschlossen.
+     *
+     * @param inputChannel  die verschlüsselten Daten als Channel
+     * @param outputChannel der Channel auf den das Entschlüsselungsergebnis geschrieben werden soll
+     * @param password      das Passwort aus welchem, der für die Entschlüsselung benötigte {@link SecretKey} mit dem übermittelten Salt erzeugt werden soll
+     * @param bufferSize    die Größe der Puffer in Bytes, beim segmentierten Format bestimmt die Segmentgröße die Puffergröße
+     */
+    public void decrypt(final ReadableByteChannel inputChannel, final WritableByteChannel outputChannel, final String password, final int bufferSize) {
+        checkBufferSize(bufferSize);
+
+        try {
+            // Der Header ist klein, hier reicht der Umweg über einen InputStream. Dieser liest nicht mehr als angefordert.
+            final CiphertextHeader header = CiphertextHeader.read(Channels.newInputStream(inputChannel));
+            if (!header.isCompressed()) {
+                decrypt(inputChannel, outputChannel, header, password, bufferSize);
+                return;
+            }
+            try (final OutputStream inflating = Compression.inflating(Channels.newOutputStream(outputChannel))) {
+                decrypt(inputChannel, Channels.newChannel(inflating), header, password, bufferSize);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        }
+    }
+
+    private void decrypt(final ReadableByteChannel inputChannel, final WritableByteChannel outputChannel, final CiphertextHeader header,
+                         final String password, final int bufferSize) {
+
+        try {
+            if (header.isSegmented()) {
+                decryptSegmented(inputChannel, outputChannel, header, password);
+                return;
+            }
+            final SecretKey secretKey = obtainKey(password, header.salt(), header.iterations());
+            final Cipher cipher = Cipher.getInstance(AES_GCM_OPERATION_MODE);
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(128, header.iv()));
+            cipher.updateAAD(header.aad());
+
+            final ByteBuffer input = directBuffer(INPUT_BUFFER, bufferSize);
+            final ByteBuffer output = directBuffer(OUTPUT_BUFFER, bufferSize);
+            while (inputChannel.read(input) >= 0) {
+                input.flip();
+                cipher.update(input, output);
+                input.compact();
+                writeFully(outputChannel, output);
+            }
+            input.flip();
+            // Der Klartext kommt erst nach der Prüfung des Tags komplett heraus. Dafür wird einmalig ein passender Puffer
+            // angelegt, der nicht im Thread gehalten wird.
+            final int outputSize = cipher.getOutputSize(input.remaining());
+            final ByteBuffer finalOutput = outputSize <= output.capacity() ? output : ByteBuffer.allocate(outputSize);
+            cipher.doFinal(input, finalOutput);
+            writeFully(outputChannel, finalOutput);
+        } catch (IOException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        } catch (NoSuchPaddingException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        } catch (ShortBufferException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        } catch (IllegalBlockSizeException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        } catch (BadPaddingException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        }
+    }
+
+    private void decryptSegmented(final ReadableByteChannel inputChannel, final WritableByteChannel outputChannel, final CiphertextHeader header,
+                                  final String password) throws IOException, NoSuchPaddingException, NoSuchAlgorithmException {
+
+        final SecretKey secretKey = obtainKey(password, header.salt(), header.iterations());
+        final Cipher cipher = Cipher.getInstance(AES_GCM_OPERATION_MODE);
+        final byte[] headerAad = header.aad();
+
+        final int encryptedSegmentSize = header.encryptedSegmentSize();
+        final ByteBuffer input = directBuffer(INPUT_BUFFER, encryptedSegmentSize + 1);
+        final ByteBuffer output = directBuffer(OUTPUT_BUFFER, header.segmentSize());
+        input.limit(encryptedSegmentSize + 1);
+        long segmentIndex = 0;
+        while (true) {
+            readFully(inputChannel, input);
+            final int buffered = input.position();
+            final boolean last = buffered <= encryptedSegmentSize;
+            SegmentedFormat.checkSegmentIndex(segmentIndex);
+
+            input.flip();
+            input.limit(last ? buffered : encryptedSegmentSize);
+            SegmentedFormat.openSegment(cipher, secretKey, header.iv(), headerAad, (int) segmentIndex, last, input, output);
+            writeFully(outputChannel, output);
+            if (last) {
+                break;
+            }
+            // Das zusätzlich gelesene Byte an den Anfang schieben.
+            input.limit(buffered);
+            input.compact();
+            input.limit(encryptedSegmentSize + 1);
+            segmentIndex++;
+        }
+    }
+
+    private Cipher initEncryptCipher(final WritableByteChannel outputChannel, final SecretKey secretKey, final byte[] salt) throws IOException {
+        CiphertextHeader.checkSalt(salt);
+        try {
+            final IvParameterSpec ivParameterSpec = createRandomIV();
+            final Cipher cipher = Cipher.getInstance(AES_GCM_OPERATION_MODE);
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey, new GCMParameterSpec(128, ivParameterSpec.getIV()));
+            final byte[] header = CiphertextHeader.stream(headerIterations(secretKey, salt), salt, false, ivParameterSpec.getIV()).aad();
+            cipher.updateAAD(header);
+            writeFully(outputChannel, ByteBuffer.wrap(header).position(header.length));
+            return cipher;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        } catch (NoSuchPaddingException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        }
+    }
+
+    /**
+     * Ein leerer Puffer würde beim Lesen aus dem Channel nie voranschreiten.
+     */
+    private static void checkBufferSize(final int bufferSize) {
+        if (bufferSize <= 0 || bufferSize > MAX_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Buffer size must be between 1 and " + MAX_BUFFER_SIZE + " but was " + bufferSize + ".");
+        }
+    }
+
+    /**
+     * Liefert einen geleerten direkten Puffer mit genau der gegebenen Kapazität. Zurückgegeben wird ein Ausschnitt des
+     * Puffers im Thread, damit {@link ByteBuffer#clear()} und {@link ByteBuffer#compact()} nicht über die angeforderte
+     * Größe hinausgehen. Puffer über {@link #MAX_CACHED_BUFFER_SIZE} werden nicht im Thread gehalten.
+     */
+    private static ByteBuffer directBuffer(final ThreadLocal<ByteBuffer> cache, final int capacity) {
+        if (capacity > MAX_CACHED_BUFFER_SIZE) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        ByteBuffer buffer = cache.get();
+        if (buffer == null || buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+            cache.set(buffer);
+        }
+        return buffer.clear().limit(capacity).slice();
+    }
+
+    /**
+     * Liest bis der Puffer voll ist oder das Ende des Channels erreicht wurde.
+     *
+     * @return {@code true}, wenn der Puffer gefüllt werden konnte
+     */
+    private static boolean readFully(final ReadableByteChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Schreibt den bis zur aktuellen Position gefüllten Puffer vollständig und leert ihn danach.
+     */
+    private static void writeFully(final WritableByteChannel channel, final ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    IvParameterSpec createRandomIV() {
         // Da wir die nonce nur für GCM in diesem Beispiel verwenden ist die Länge des Arrays 12. Bei GCM ist diese 12, bei CBC 16.
         final byte[] nonce = new byte[12];
         // man könnt den SecureRandom mit SHA1PRNG explizit erzeugen, jedoch ist das sowieso einer der Defaults.
@@ -0,0 +1,215 @@
+package de.catcode.cryptdings;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ver- und entschlüsselt viele kleine Nachrichten mit einem einmal abgeleiteten Schlüssel.
+ * <p>
+ * Bei {@link Crypter#encrypt(java.io.InputStream, java.io.OutputStream, SecretKey, byte[])} kosten pro Nachricht
+ * {@link Cipher#getInstance(String)}, ein neuer {@link SecureRandom}, die Streams und das Salt mehr als die
+ * Verschlüsselung selbst. Eine Session leitet den Schlüssel einmal ab, verwendet pro Thread einen {@link Cipher} und
+ * versiegelt Nachrichten direkt als {@code byte[]} oder {@link ByteBuffer}.
+ * <p>
+ * Eine versiegelte Nachricht hat den Aufbau Nonce(12)+Cipher+Tag(16). Salt und Iterationen gehören zur Session und
+ * müssen einmal zusammen mit den Nachrichten übertragen werden, siehe {@link #getSalt()} und {@link #getIterations()}.
+ * Wie beim Header einer Datei können so beide Seiten mit unterschiedlich kalibrierten {@link Crypter} arbeiten.
+ * <p>
+ * Die Nonce besteht aus einem pro Session zufälligen Präfix von 4 Bytes und einem 64 Bit Zähler. Nach
+ * {@code maxMessages} Nachrichten verweigert die Session das Versiegeln, dann muss eine neue Session (mit neuem Salt und
+ * damit neuem Schlüssel) erzeugt werden. Nur Sessions mit frisch erzeugtem Salt dürfen versiegeln. Eine Session zu einem
+ * bestehenden Salt hätte den gleichen Schlüssel und würde Nonces wiederholen, sie kann deshalb nur öffnen.
+ * <p>
+ * Instanzen sind threadsicher.
+ */
+public class CryptoSession {
+
+    public static final int NONCE_LENGTH = 12;
+    public static final int TAG_LENGTH = 16;
+    public static final int OVERHEAD = NONCE_LENGTH + TAG_LENGTH;
+
+    // Nach NIST SP 800-38D sollte ein Schlüssel ohnehin nicht für beliebig viele Nachrichten verwendet werden.
+    public static final long DEFAULT_MAX_MESSAGES = 1L << 32;
+
+    private static final String AES_GCM_OPERATION_MODE = "AES/GCM/NoPadding";
+
+    private final SecretKey secretKey;
+    private final byte[] salt;
+    private final int iterations;
+    private final boolean sealing;
+    private final long maxMessages;
+
+    private final int noncePrefix;
+    private final AtomicLong counter = new AtomicLong();
+
+    private final ThreadLocal<Cipher> cipher = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(AES_GCM_OPERATION_MODE);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        } catch (NoSuchPaddingException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        }
+    });
+
+    /**
+     * Erzeugt eine Session zum Versiegeln und Öffnen mit neuem, zufälligem Salt.
+     *
+     * @param crypter  der {@link Crypter} für Salt und Schlüsselableitung
+     * @param password das Passwort aus dem der Schlüssel abgeleitet wird
+     */
+    public CryptoSession(final Crypter crypter, final String password) {
+        this(crypter, password, DEFAULT_MAX_MESSAGES);
+    }
+
+    /**
+     * Erzeugt eine Session zum Versiegeln und Öffnen mit neuem, zufälligem Salt.
+     *
+     * @param crypter     der {@link Crypter} für Salt und Schlüsselableitung
+     * @param password    das Passwort aus dem der Schlüssel abgeleitet wird
+     * @param maxMessages die maximale Anzahl Nachrichten, die mit dieser Session versiegelt werden dürfen
+     */
+    public CryptoSession(final Crypter crypter, final String password, final long maxMessages) {
+        if (maxMessages <= 0) {
+            throw new IllegalArgumentException("maxMessages must be positive but was " + maxMessages + ".");
+        }
+        this.salt = crypter.generateRandomSalt();
+        this.iterations = crypter.getIterations();
+        this.secretKey = crypter.deriveFromPassword(password, salt);
+        this.sealing = true;
+        this.maxMessages = maxMessages;
+        this.noncePrefix = new SecureRandom().nextInt();
+    }
+
+    /**
+     * Erzeugt eine Session, die nur Nachrichten zu einem bestehenden Salt öffnen kann. Es werden die Iterationen des
+     * {@link Crypter} verwendet, die versiegelnde Session muss also die gleichen Iterationen haben.
+     *
+     * @see #CryptoSession(Crypter, String, byte[], int)
+     */
+    public CryptoSession(final Crypter crypter, final String password, final byte[] salt) {
+        this(crypter, password, salt, crypter.getIterations());
+    }
+
+    /**
+     * Erzeugt eine Session, die nur Nachrichten zu einem bestehenden Salt öffnen kann.
+     *
+     * @param crypter    der {@link Crypter} für die Schlüsselableitung
+     * @param password   das Passwort aus dem der Schlüssel abgeleitet wird
+     * @param salt       das Salt der versiegelnden Session
+     * @param iterations die Iterationen der versiegelnden Session
+     */
+    public CryptoSession(final Crypter crypter, final String password, final byte[] salt, final int iterations) {
+        CiphertextHeader.checkIterations(iterations);
+        this.salt = salt.clone();
+        this.iterations = iterations;
+        this.secretKey = crypter.obtainKey(password, this.salt, iterations);
+        this.sealing = false;
+        this.maxMessages = 0;
+        this.noncePrefix = 0;
+    }
+
+    /**
+     * @return das Salt, aus dem zusammen mit dem Passwort der Schlüssel der Session abgeleitet wurde
+     */
+    public byte[] getSalt() {
+        return salt.clone();
+    }
+
+    /**
+     * @return die Iterationen, mit denen der Schlüssel der Session abgeleitet wurde
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Versiegelt eine Nachricht.
+     *
+     * @param plaintext der Klartext
+     * @return Nonce+Cipher+Tag
+     */
+    public byte[] seal(final byte[] plaintext) {
+        final byte[] record = new byte[plaintext.length + OVERHEAD];
+        seal(ByteBuffer.wrap(plaintext), ByteBuffer.wrap(record));
+        return record;
+    }
+
+    /**
+     * Versiegelt die verbleibenden Bytes von {@code plaintext} und schreibt Nonce+Cipher+Tag ab der Position von {@code output}.
+     *
+     * @return die Anzahl der geschriebenen Bytes, also {@code plaintext.remaining() + OVERHEAD}
+     * @throws IllegalStateException wenn die Session nicht versiegeln darf oder das Nachrichtenlimit erreicht ist
+     */
+    public int seal(final ByteBuffer plaintext, final ByteBuffer output) {
+        if (!sealing) {
+            throw new IllegalStateException("Session was opened with an existing salt and can only open records.");
+        }
+        if (output.remaining() < plaintext.remaining() + OVERHEAD) {
+            throw new IllegalArgumentException("Output buffer too small.");
+        }
+        final long messageNumber = counter.getAndIncrement();
+        if (messageNumber >= maxMessages) {
+            throw new IllegalStateException("Session exhausted after " + maxMessages + " messages, create a new session.");
+        }
+
+        final byte[] nonce = ByteBuffer.allocate(NONCE_LENGTH).putInt(noncePrefix).putLong(messageNumber).array();
+        try {
+            final Cipher sessionCipher = cipher.get();
+            sessionCipher.init(Cipher.ENCRYPT_MODE, secretKey, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            output.put(nonce);
+            return NONCE_LENGTH + sessionCipher.doFinal(plaintext, output);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | ShortBufferException | IllegalBlockSizeException |
+                 BadPaddingException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        }
+    }
+
+    /**
+     * Öffnet eine Nachricht und prüft deren Tag.
+     *
+     * @param record Nonce+Cipher+Tag
+     * @return der Klartext
+     */
+    public byte[] open(final byte[] record) {
+        final byte[] plaintext = new byte[Math.max(0, record.length - OVERHEAD)];
+        open(ByteBuffer.wrap(record), ByteBuffer.wrap(plaintext));
+        return plaintext;
+    }
+
+    /**
+     * Öffnet die verbleibenden Bytes von {@code record} und schreibt den Klartext ab der Position von {@code output}.
+     *
+     * @return die Anzahl der geschriebenen Bytes Klartext
+     * @throws RuntimeException wenn der Tag nicht passt
+     */
+    public int open(final ByteBuffer record, final ByteBuffer output) {
+        if (record.remaining() < OVERHEAD) {
+            throw new RuntimeException("Record is truncated.");
+        }
+        final byte[] nonce = new byte[NONCE_LENGTH];
+        record.get(nonce);
+        try {
+            final Cipher sessionCipher = cipher.get();
+            sessionCipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            return sessionCipher.doFinal(record, output);
+        } catch (AEADBadTagException e) {
+            throw new RuntimeException("Authentication of record failed.", e);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | ShortBufferException | IllegalBlockSizeException |
+                 BadPaddingException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        }
+    }
+}
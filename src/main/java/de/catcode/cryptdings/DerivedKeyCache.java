@@ -0,0 +1,273 @@
+package de.catcode.cryptdings;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Zwischenspeicher für aus Passwort und Salt abgeleitete Schlüssel.
+ * <p>
+ * Beim Entschlüsseln vieler kleiner Dateien mit gleichem Passwort und Salt dominiert sonst die Schlüsselableitung
+ * (PBKDF2 mit 65536 Iterationen) die Laufzeit. Der Cache ist optional und wird über
+ * {@link Crypter#Crypter(DerivedKeyCache)} aktiviert.
+ * <p>
+ * Als Schlüssel des Caches dient ein HMAC-SHA256 über Passwort, Salt und Iterationen mit einem pro Cache zufällig erzeugten
+ * Geheimnis. Das Passwort selbst wird nicht abgelegt. Einträge werden nach {@code timeToLive} oder bei Überschreiten von
+ * {@code maxSize} (der am längsten nicht benutzte zuerst) entfernt und das Schlüsselmaterial dabei mit Nullen überschrieben.
+ * Die an Aufrufer herausgegebenen {@link SecretKey} Instanzen sind Kopien und davon nicht betroffen.
+ * <p>
+ * Der Cache ist threadsicher. Fragen mehrere Threads gleichzeitig nach einem noch nicht vorhandenen Schlüssel, wird
+ * dieser nur einmal abgeleitet und die übrigen Threads warten auf das Ergebnis.
+ */
+public class DerivedKeyCache {
+
+    private final int maxSize;
+    private final long timeToLiveNanos;
+    private final LongSupplier ticker;
+    private final byte[] digestSecret = new byte[32];
+
+    // accessOrder = true, damit der erste Eintrag immer der am längsten nicht benutzte ist.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    /**
+     * @param maxSize    die maximale Anzahl an Schlüsseln im Cache
+     * @param timeToLive die Zeit nach der Ableitung, nach der ein Schlüssel verworfen wird
+     */
+    public DerivedKeyCache(final int maxSize, final Duration timeToLive) {
+        this(maxSize, timeToLive, System::nanoTime);
+    }
+
+    DerivedKeyCache(final int maxSize, final Duration timeToLive, final LongSupplier ticker) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive but was " + maxSize + ".");
+        }
+        if (timeToLive.isNegative() || timeToLive.isZero()) {
+            throw new IllegalArgumentException("timeToLive must be positive but was " + timeToLive + ".");
+        }
+        this.maxSize = maxSize;
+        this.timeToLiveNanos = timeToLive.toNanos();
+        this.ticker = ticker;
+        new SecureRandom().nextBytes(digestSecret);
+    }
+
+    /**
+     * Liefert den Schlüssel zu Passwort, Salt und Iterationen aus dem Cache oder leitet ihn über {@code derivation} ab.
+     *
+     * @return eine Kopie des Schlüssels oder {@code null}, wenn {@code derivation} {@code null} geliefert hat
+     */
+    SecretKey get(final String password, final byte[] salt, final int iterations, final Supplier<SecretKey> derivation) {
+        final String cacheKey = cacheKey(password, salt, iterations);
+        final Entry entry;
+        final boolean owner;
+
+        synchronized (entries) {
+            final long now = ticker.getAsLong();
+            final Entry existing = entries.get(cacheKey);
+            if (existing != null && !existing.isExpired(now)) {
+                hitCount.increment();
+                entry = existing;
+                owner = false;
+            } else {
+                missCount.increment();
+                entry = new Entry(new FutureTask<>(() -> {
+                    final SecretKey secretKey = derivation.get();
+                    return secretKey == null ? null : secretKey.getEncoded();
+                }), now);
+                if (existing != null) {
+                    evict(existing);
+                }
+                entries.put(cacheKey, entry);
+                evictExpired(now);
+                evictOverflow();
+                owner = true;
+            }
+        }
+
+        // Die Ableitung läuft außerhalb der Sperre, damit andere Schlüssel nicht warten müssen.
+        if (owner) {
+            entry.derive();
+        }
+
+        final byte[] material;
+        try {
+            material = entry.derivation.get();
+        } catch (ExecutionException e) {
+            remove(cacheKey, entry);
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new RuntimeException("Unhandled exception occurred.", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for key derivation.", e);
+        }
+
+        if (material == null) {
+            remove(cacheKey, entry);
+            return null;
+        }
+        final SecretKey secretKey = entry.toSecretKey(material);
+        // Wurde der Eintrag zwischenzeitlich verdrängt, ist das Material bereits überschrieben.
+        return secretKey != null ? secretKey : derivation.get();
+    }
+
+    /**
+     * Entfernt alle abgelaufenen Einträge.
+     */
+    public void cleanUp() {
+        synchronized (entries) {
+            evictExpired(ticker.getAsLong());
+        }
+    }
+
+    /**
+     * Entfernt alle Einträge und überschreibt deren Schlüsselmaterial.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.values().forEach(this::evict);
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    private void remove(final String cacheKey, final Entry entry) {
+        synchronized (entries) {
+            if (entries.get(cacheKey) == entry) {
+                entries.remove(cacheKey);
+            }
+        }
+    }
+
+    private void evictExpired(final long now) {
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            if (entry.isExpired(now)) {
+                iterator.remove();
+                evict(entry);
+            }
+        }
+    }
+
+    private void evictOverflow() {
+        final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (entries.size() > maxSize && iterator.hasNext()) {
+            final Entry entry = iterator.next().getValue();
+            iterator.remove();
+            evict(entry);
+        }
+    }
+
+    private void evict(final Entry entry) {
+        evictionCount.increment();
+        entry.destroy();
+    }
+
+    private String cacheKey(final String password, final byte[] salt, final int iterations) {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(digestSecret, "HmacSHA256"));
+            final byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
+            // Die Länge des Passworts wird vorangestellt, damit die Grenze zwischen Passwort und Salt eindeutig ist.
+            mac.update(ByteBuffer.allocate(4).putInt(passwordBytes.length).array());
+            mac.update(passwordBytes);
+            mac.update(salt);
+            mac.update(ByteBuffer.allocate(4).putInt(iterations).array());
+            Arrays.fill(passwordBytes, (byte) 0);
+            return HexFormat.of().formatHex(mac.doFinal());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        }
+    }
+
+    private final class Entry {
+
+        private final FutureTask<byte[]> derivation;
+        private final long createdAt;
+        private boolean destroyed;
+
+        private Entry(final FutureTask<byte[]> derivation, final long createdAt) {
+            this.derivation = derivation;
+            this.createdAt = createdAt;
+        }
+
+        private boolean isExpired(final long now) {
+            return now - createdAt >= timeToLiveNanos;
+        }
+
+        private void derive() {
+            derivation.run();
+            synchronized (this) {
+                // Verdrängt während die Ableitung noch lief.
+                if (destroyed) {
+                    wipe();
+                }
+            }
+        }
+
+        private synchronized SecretKey toSecretKey(final byte[] material) {
+            return destroyed ? null : new SecretKeySpec(material, "AES");
+        }
+
+        private synchronized void destroy() {
+            destroyed = true;
+            if (derivation.isDone()) {
+                wipe();
+            }
+        }
+
+        private void wipe() {
+            try {
+                final byte[] material = derivation.get();
+                if (material != null) {
+                    Arrays.fill(material, (byte) 0);
+                }
+            } catch (ExecutionException | CancellationException e) {
+                // kein Material vorhanden
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
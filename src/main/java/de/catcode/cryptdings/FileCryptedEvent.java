@@ -0,0 +1,47 @@
+package de.catcode.cryptdings;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR Event für eine von {@link BulkCrypter} verarbeitete Datei. Die Dauer reicht vom Einreihen in die Pipeline bis
+ * zum Schreiben des Ergebnisses, die Felder zeigen, welcher Anteil davon auf Schlüsselableitung und Cipher entfällt.
+ */
+@Name("de.catcode.cryptdings.FileCrypted")
+@Label("File Crypted")
+@Category("Cryptdings")
+@Description("A file encrypted or decrypted by the bulk pipeline")
+@StackTrace(false)
+class FileCryptedEvent extends Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Path")
+    String path;
+
+    @Label("Bytes Read")
+    @DataAmount
+    long bytesRead;
+
+    @Label("Bytes Written")
+    @DataAmount
+    long bytesWritten;
+
+    @Label("Key Derivation")
+    @Timespan
+    long keyDerivationDuration;
+
+    @Label("Cipher")
+    @Timespan
+    long cipherDuration;
+
+    @Label("Succeeded")
+    boolean succeeded;
+}
@@ -0,0 +1,148 @@
+package de.catcode.cryptdings;
+
+import javax.crypto.SecretKey;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Leitet im Hintergrund Schlüssel mit jeweils neuem Salt für ein festes Passwort ab.
+ * <p>
+ * Jede neue Datei braucht ein eigenes Salt und damit eine eigene Schlüsselableitung, die mit 65536 Iterationen die
+ * Latenz von {@link Crypter#encrypt(java.io.InputStream, java.io.OutputStream, SecretKey, byte[])} bestimmt. Der Pool
+ * hält bis zu {@code capacity} fertige Paare aus Salt und Schlüssel vor, die mit {@link #take()} ohne Wartezeit entnommen
+ * werden. Jedes Paar wird genau einmal herausgegeben, Salts werden also nicht wiederverwendet.
+ * <p>
+ * Ist der Vorrat leer, leitet {@link #take()} selbst ab und zählt das als Engpass (siehe {@link #getStarvationCount()}).
+ * <p>
+ * Schlägt eine Ableitung im Hintergrund fehl, beendet sich der betroffene Thread, statt es endlos erneut zu versuchen.
+ * Der Fehler wird in {@link #getFailureCount()} und {@link #getLastFailure()} festgehalten.
+ */
+public class KeyPreDerivationPool implements AutoCloseable {
+
+    /**
+     * Ein Schlüssel zusammen mit dem Salt, aus dem er abgeleitet wurde.
+     */
+    public record DerivedKey(byte[] salt, SecretKey secretKey) {
+    }
+
+    private final Crypter crypter;
+    private final String password;
+    private final BlockingQueue<DerivedKey> ready;
+    private final ExecutorService producers;
+
+    private final LongAdder takeCount = new LongAdder();
+    private final LongAdder starvationCount = new LongAdder();
+    private final LongAdder failureCount = new LongAdder();
+    private volatile RuntimeException lastFailure;
+
+    /**
+     * @param crypter  der {@link Crypter} für Salt und Schlüsselableitung
+     * @param password das Passwort aus dem die Schlüssel abgeleitet werden
+     * @param capacity die maximale Anzahl vorgehaltener Schlüssel
+     * @param threads  die Anzahl der Hintergrund-Threads
+     */
+    public KeyPreDerivationPool(final Crypter crypter, final String password, final int capacity, final int threads) {
+        if (capacity <= 0 || threads <= 0) {
+            throw new IllegalArgumentException("capacity and threads must be positive.");
+        }
+        this.crypter = crypter;
+        this.password = password;
+        this.ready = new ArrayBlockingQueue<>(capacity);
+        this.producers = Executors.newFixedThreadPool(threads, daemonThreadFactory());
+        for (int i = 0; i < threads; i++) {
+            producers.execute(this::produce);
+        }
+    }
+
+    /**
+     * Entnimmt ein vorab abgeleitetes Paar aus Salt und Schlüssel. Ist keines vorhanden, wird im aufrufenden Thread abgeleitet.
+     */
+    public DerivedKey take() {
+        takeCount.increment();
+        final DerivedKey derivedKey = ready.poll();
+        if (derivedKey != null) {
+            return derivedKey;
+        }
+        starvationCount.increment();
+        return derive();
+    }
+
+    /**
+     * @return die Anzahl der aktuell vorgehaltenen Schlüssel
+     */
+    public int getQueueDepth() {
+        return ready.size();
+    }
+
+    public long getTakeCount() {
+        return takeCount.sum();
+    }
+
+    /**
+     * @return wie oft {@link #take()} keinen fertigen Schlüssel vorgefunden hat
+     */
+    public long getStarvationCount() {
+        return starvationCount.sum();
+    }
+
+    /**
+     * @return die Anzahl der Hintergrund-Threads, die wegen einer fehlgeschlagenen Ableitung beendet wurden
+     */
+    public long getFailureCount() {
+        return failureCount.sum();
+    }
+
+    /**
+     * @return der letzte Fehler eines Hintergrund-Threads oder {@code null}
+     */
+    public RuntimeException getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * Beendet die Hintergrund-Threads und verwirft die vorgehaltenen Schlüssel.
+     */
+    @Override
+    public void close() {
+        producers.shutdownNow();
+        ready.clear();
+    }
+
+    private void produce() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                // put blockiert, solange der Vorrat voll ist.
+                ready.put(derive());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // Mit gleichem Passwort und Crypter schlägt auch die nächste Ableitung fehl.
+            lastFailure = e;
+            failureCount.increment();
+        }
+    }
+
+    private DerivedKey derive() {
+        final byte[] salt = crypter.generateRandomSalt();
+        final SecretKey secretKey = crypter.deriveFromPassword(password, salt);
+        if (secretKey == null) {
+            throw new IllegalStateException("Key derivation failed.");
+        }
+        return new DerivedKey(salt, secretKey);
+    }
+
+    private static ThreadFactory daemonThreadFactory() {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, "key-pre-derivation-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
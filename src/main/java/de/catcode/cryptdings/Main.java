@@ -1,15 +1,121 @@
 package de.catcode.cryptdings;
 
-import java.nio.charset.Charset;
+import java.io.Console;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.zip.Deflater;
 
+/**
+ * Kommandozeile zum Ver- und Entschlüsseln ganzer Verzeichnisbäume oder einzelner Dateien mit {@link BulkCrypter}.
+ * <pre>
+ * java -jar cryptdings.jar encrypt|decrypt &lt;Quelle&gt; &lt;Ziel&gt; [Optionen]
+ * </pre>
+ * Das Passwort wird aus der Umgebungsvariable {@value #PASSWORD_VARIABLE} gelesen oder, falls diese fehlt, auf der
+ * Konsole abgefragt. Nach dem Lauf wird eine Zusammenfassung ({@link BulkStatistics#summary()}) ausgegeben. Für die
+ * Analyse in Produktion kann zusätzlich mit {@code -XX:StartFlightRecording} aufgezeichnet werden, die Events liegen
+ * in der Kategorie "Cryptdings".
+ */
 public class Main {
 
+    static final String PASSWORD_VARIABLE = "CRYPTDINGS_PASSWORD";
+
+    private static final String USAGE = """
+            Verwendung: cryptdings encrypt|decrypt <Quelle> <Ziel> [Optionen]
+              --threads <n>       Threads für Schlüsselableitung und Cipher (Standard: Anzahl Prozessoren)
+              --io-threads <n>    Threads für Lesen und Schreiben (Standard: 4)
+              --in-flight <n>     maximale Anzahl Dateien in der Pipeline (Standard: 4 * threads)
+              --max-memory <MiB>  maximaler Heap für Dateien in der Pipeline (Standard: ein Viertel des maximalen Heaps)
+              --virtual-threads   virtuelle Threads für Lesen und Schreiben, sofern verfügbar (ab Java 21)
+              --iterations <n>    PBKDF2 Iterationen beim Verschlüsseln (Standard: 65536)
+              --compression <n>   Deflater Stufe 1-9 beim Verschlüsseln, 0 schaltet die Kompression ab (Standard: 0)
+            """;
+
     public static void main(String[] args) {
-        new Main();
+        System.exit(new Main().run(args, System.out, System.err));
+    }
+
+    /**
+     * @return der Exit-Code: 0 bei Erfolg, 1 wenn Dateien fehlgeschlagen sind, 2 bei falschen Argumenten
+     */
+    int run(final String[] args, final PrintStream out, final PrintStream err) {
+        if (args.length < 3 || !("encrypt".equals(args[0]) || "decrypt".equals(args[0]))) {
+            err.print(USAGE);
+            return 2;
+        }
+        final boolean encrypt = "encrypt".equals(args[0]);
+        final Path source = Path.of(args[1]);
+        final Path target = Path.of(args[2]);
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        int ioThreads = 4;
+        int inFlight = -1;
+        long maxMemory = -1;
+        boolean virtualThreads = false;
+        int iterations = Crypter.ITERATIONS;
+        int compression = Deflater.NO_COMPRESSION;
+        try {
+            for (int i = 3; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--threads" -> threads = Integer.parseInt(args[++i]);
+                    case "--io-threads" -> ioThreads = Integer.parseInt(args[++i]);
+                    case "--in-flight" -> inFlight = Integer.parseInt(args[++i]);
+                    case "--max-memory" -> maxMemory = Long.parseLong(args[++i]) * 1024 * 1024;
+                    case "--virtual-threads" -> virtualThreads = true;
+                    case "--iterations" -> iterations = Integer.parseInt(args[++i]);
+                    case "--compression" -> compression = Integer.parseInt(args[++i]);
+                    default -> throw new IllegalArgumentException("Unknown option " + args[i] + ".");
+                }
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            err.println(e instanceof ArrayIndexOutOfBoundsException ? "Missing value for " + args[args.length - 1] + "." : e.getMessage());
+            err.print(USAGE);
+            return 2;
+        }
+
+        final String password = readPassword();
+        if (password == null) {
+            err.println("No password given, set " + PASSWORD_VARIABLE + " or run on a console.");
+            return 2;
+        }
+
+        final Crypter crypter = new Crypter(iterations, null, compression);
+        final int filesInFlight = inFlight > 0 ? inFlight : 4 * threads;
+        try (final BulkCrypter bulkCrypter = maxMemory > 0
+                ? new BulkCrypter(crypter, threads, ioThreads, filesInFlight, maxMemory, virtualThreads)
+                : new BulkCrypter(crypter, threads, ioThreads, filesInFlight, virtualThreads)) {
+            if (virtualThreads && !bulkCrypter.isUsingVirtualThreads()) {
+                err.println("Virtual threads are not available in this runtime, using " + ioThreads + " I/O threads.");
+            }
+            final BulkStatistics statistics = encrypt
+                    ? bulkCrypter.encrypt(source, target, password)
+                    : bulkCrypter.decrypt(source, target, password);
+
+            for (final Map.Entry<Path, Exception> failure : statistics.getFailures().entrySet()) {
+                err.println(failure.getKey() + ": " + failure.getValue());
+            }
+            out.print(statistics.summary());
+            return statistics.getFailures().isEmpty() ? 0 : 1;
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            return 2;
+        } catch (IOException e) {
+            err.println(e);
+            return 1;
+        }
     }
 
-    public Main() {
-        System.out.println(System.getProperty("file.encoding"));
-        System.out.println(Charset.defaultCharset());
+    private static String readPassword() {
+        final String password = System.getenv(PASSWORD_VARIABLE);
+        if (password != null) {
+            return password;
+        }
+        final Console console = System.console();
+        if (console == null) {
+            return null;
+        }
+        final char[] entered = console.readPassword("Passwort: ");
+        return entered == null ? null : new String(entered);
     }
 }
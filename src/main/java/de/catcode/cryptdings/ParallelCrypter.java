@@ -0,0 +1,219 @@
+package de.catcode.cryptdings;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Ver- und entschlüsselt im segmentierten Format ({@link SegmentedFormat}) auf mehreren Kernen.
+ * <p>
+ * Da jedes Segment eine eigene, aus IV und Segmentzähler abgeleitete Nonce hat, lassen sich die Segmente unabhängig
+ * voneinander versiegeln und öffnen. Der aufrufende Thread liest die Segmente, übergibt sie dem Executor und schreibt
+ * die Ergebnisse in der ursprünglichen Reihenfolge. Es sind höchstens {@code maxSegmentsInFlight} Segmente gleichzeitig
+ * unterwegs, wodurch der Speicherbedarf begrenzt bleibt und ein langsamer Datenträger die Leser bremst.
+ * <p>
+ * Das Ergebnis ist mit {@link Crypter#encryptSegmented(InputStream, OutputStream, SecretKey, byte[], int)} und
+ * {@link Crypter#decrypt(InputStream, OutputStream, String)} austauschbar. Die Schlüsselableitung bleibt beim {@link Crypter},
+ * parallelisiert wird nur die Arbeit des Ciphers. Ist beim {@link Crypter} eine Kompression eingestellt, läuft diese
+ * sequenziell im aufrufenden Thread.
+ */
+public class ParallelCrypter {
+
+    // Größere Segmente als beim sequenziellen Verschlüsseln, damit der Verwaltungsaufwand pro Aufgabe nicht ins Gewicht fällt.
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    private static final String AES_GCM_OPERATION_MODE = "AES/GCM/NoPadding";
+
+    private final Crypter crypter;
+    private final Executor executor;
+    private final int segmentSize;
+    private final int maxSegmentsInFlight;
+
+    // Cipher Instanzen sind nicht threadsicher, lassen sich aber pro Thread für beliebig viele Segmente neu initialisieren.
+    private final ThreadLocal<Cipher> cipher = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(AES_GCM_OPERATION_MODE);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        } catch (NoSuchPaddingException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        }
+    });
+
+    /**
+     * Erzeugt einen ParallelCrypter auf dem {@link ForkJoinPool#commonPool()} mit 1 MiB großen Segmenten und
+     * doppelt so vielen Segmenten in Arbeit wie Prozessoren vorhanden sind.
+     */
+    public ParallelCrypter() {
+        this(new Crypter(), ForkJoinPool.commonPool(), DEFAULT_SEGMENT_SIZE, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param crypter             der {@link Crypter} für die Schlüsselableitung und das alte Format
+     * @param executor            der Executor auf dem die Segmente versiegelt bzw. geöffnet werden
+     * @param segmentSize         die Anzahl Bytes Klartext pro Segment beim Verschlüsseln
+     * @param maxSegmentsInFlight die maximale Anzahl an Segmenten, die gleichzeitig verarbeitet oder zum Schreiben vorgehalten werden
+     */
+    public ParallelCrypter(final Crypter crypter, final Executor executor, final int segmentSize, final int maxSegmentsInFlight) {
+        SegmentedFormat.checkSegmentSize(segmentSize);
+        if (maxSegmentsInFlight <= 0) {
+            throw new IllegalArgumentException("maxSegmentsInFlight must be positive but was " + maxSegmentsInFlight + ".");
+        }
+        this.crypter = crypter;
+        this.executor = executor;
+        this.segmentSize = segmentSize;
+        this.maxSegmentsInFlight = maxSegmentsInFlight;
+    }
+
+    /**
+     * Verschlüsselt den Inhalt eines eingehenden InputStreams parallel im segmentierten Format. Der OutputStream wird nicht geschlossen.
+     *
+     * @param inputStream  die zu verschlüsselnden Daten als InputStream
+     * @param outputStream der OutputStream auf den das Verschlüsselungsergebnis geschrieben werden soll
+     * @param secretKey    der {@link SecretKey} der zur Anwendung kommt
+     * @param salt         Das zur {@link SecretKey} Erzeugung verwendete Salt.
+     */
+    public void encrypt(final InputStream inputStream, final OutputStream outputStream, final SecretKey secretKey, final byte[] salt) {
+        CiphertextHeader.checkSalt(salt);
+        final byte[] iv = crypter.createRandomIV().getIV();
+
+        try (final Compression.Input input = Compression.prepare(inputStream, crypter.getCompressionLevel())) {
+            final CiphertextHeader header = CiphertextHeader.segmented(crypter.headerIterations(secretKey, salt), salt, input.compressed(),
+                    segmentSize, iv);
+            header.write(outputStream);
+            encryptSegments(input.stream(), outputStream, secretKey, iv, header.aad());
+            outputStream.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        }
+    }
+
+    private void encryptSegments(final InputStream inputStream, final OutputStream outputStream, final SecretKey secretKey,
+                                 final byte[] iv, final byte[] headerAad) throws IOException {
+        final Deque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+
+        byte[] current = inputStream.readNBytes(segmentSize);
+        long segmentIndex = 0;
+        while (true) {
+            // Nur ein volles Segment kann noch Nachfolger haben. Ist der Nachfolger leer, ist das aktuelle Segment das letzte.
+            final byte[] next = current.length == segmentSize ? inputStream.readNBytes(segmentSize) : null;
+            final boolean last = next == null || next.length == 0;
+            SegmentedFormat.checkSegmentIndex(segmentIndex);
+
+            final byte[] plain = current;
+            final int index = (int) segmentIndex;
+            awaitCapacity(pending, outputStream);
+            pending.addLast(CompletableFuture.supplyAsync(() -> {
+                final byte[] encrypted = new byte[plain.length + SegmentedFormat.TAG_LENGTH];
+                SegmentedFormat.sealSegment(cipher.get(), secretKey, iv, headerAad, index, last, plain, 0, plain.length, encrypted, 0);
+                return encrypted;
+            }, executor));
+
+            if (last) {
+                break;
+            }
+            current = next;
+            segmentIndex++;
+        }
+        drain(pending, outputStream);
+    }
+
+    /**
+     * Entschlüsselt den eingehenden InputStream und schreibt das Resultat auf den gegebenen OutputStream. Segmente werden
+     * parallel geöffnet, aber erst geschrieben, wenn sie und alle vorherigen Segmente erfolgreich geprüft wurden.
+     * <p>
+     * Liegt ein einzelner GCM Strom vor, z.B. im alten Format Salt+IV+Cipher, wird sequenziell über {@link Crypter#decrypt(InputStream, OutputStream, String)} entschlüsselt.
+     *
+     * @param inputStream  die verschlüsselten Daten als InputStream
+     * @param outputStream der OutputStream auf den das Entschlüsselungsergebnis geschrieben werden soll
+     * @param password     das Passwort aus welchem, der für die Entschlüsselung benötigte {@link SecretKey} mit dem übermittelten Salt erzeugt werden soll
+     */
+    public void decrypt(final InputStream inputStream, final OutputStream outputStream, final String password) {
+
+        try {
+            final CiphertextHeader header = CiphertextHeader.read(inputStream);
+            if (!header.isSegmented()) {
+                crypter.decrypt(inputStream, outputStream, header, password);
+                return;
+            }
+            if (!header.isCompressed()) {
+                decryptSegments(inputStream, outputStream, header, password);
+            } else {
+                try (final OutputStream inflating = Compression.inflating(outputStream)) {
+                    decryptSegments(inputStream, inflating, header, password);
+                }
+            }
+            outputStream.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        }
+    }
+
+    private void decryptSegments(final InputStream inputStream, final OutputStream outputStream, final CiphertextHeader header,
+                                 final String password) throws IOException {
+        final SecretKey secretKey = crypter.obtainKey(password, header.salt(), header.iterations());
+        final byte[] headerAad = header.aad();
+        final int encryptedSegmentSize = header.encryptedSegmentSize();
+        final Deque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+
+        byte[] current = inputStream.readNBytes(encryptedSegmentSize);
+        long segmentIndex = 0;
+        while (true) {
+            final byte[] next = current.length == encryptedSegmentSize ? inputStream.readNBytes(encryptedSegmentSize) : null;
+            final boolean last = next == null || next.length == 0;
+            SegmentedFormat.checkSegmentIndex(segmentIndex);
+
+            final byte[] encrypted = current;
+            final int index = (int) segmentIndex;
+            awaitCapacity(pending, outputStream);
+            pending.addLast(CompletableFuture.supplyAsync(() -> {
+                final byte[] plain = new byte[Math.max(0, encrypted.length - SegmentedFormat.TAG_LENGTH)];
+                SegmentedFormat.openSegment(cipher.get(), secretKey, header.iv(), headerAad, index, last, encrypted, 0, encrypted.length, plain, 0);
+                return plain;
+            }, executor));
+
+            if (last) {
+                break;
+            }
+            current = next;
+            segmentIndex++;
+        }
+        drain(pending, outputStream);
+    }
+
+    /**
+     * Schreibt fertige Segmente vom Anfang der Warteschlange, bis wieder Platz für ein weiteres Segment ist.
+     */
+    private void awaitCapacity(final Deque<CompletableFuture<byte[]>> pending, final OutputStream outputStream) throws IOException {
+        while (pending.size() >= maxSegmentsInFlight) {
+            outputStream.write(await(pending.removeFirst()));
+        }
+    }
+
+    private static void drain(final Deque<CompletableFuture<byte[]>> pending, final OutputStream outputStream) throws IOException {
+        while (!pending.isEmpty()) {
+            outputStream.write(await(pending.removeFirst()));
+        }
+    }
+
+    private static byte[] await(final CompletableFuture<byte[]> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw e;
+        }
+    }
+}
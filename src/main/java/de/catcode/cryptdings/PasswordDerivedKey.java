@@ -0,0 +1,32 @@
+package de.catcode.cryptdings;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Ein von {@link Crypter#deriveFromPassword(String, byte[])} abgeleiteter Schlüssel, der Salt und Iterationen seiner
+ * Ableitung kennt.
+ * <p>
+ * Beim Verschlüsseln landen diese Werte im Header. So passt der Header auch dann zum Schlüssel, wenn mit einem anderen
+ * {@link Crypter} oder {@link ParallelCrypter} als dem ableitenden verschlüsselt wird.
+ */
+final class PasswordDerivedKey extends SecretKeySpec {
+
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] salt;
+    private final int iterations;
+
+    PasswordDerivedKey(final byte[] key, final byte[] salt, final int iterations) {
+        super(key, "AES");
+        this.salt = salt.clone();
+        this.iterations = iterations;
+    }
+
+    byte[] salt() {
+        return salt.clone();
+    }
+
+    int iterations() {
+        return iterations;
+    }
+}
@@ -0,0 +1,29 @@
+package de.catcode.cryptdings;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR Event für die Zeit, die {@link BulkCrypter} mit dem Einreihen weiterer Dateien warten muss, weil bereits die
+ * maximale Anzahl Dateien oder Bytes in der Pipeline ist. Häufige Stalls bedeuten, dass Cipher oder Schreiben nicht hinterherkommen.
+ */
+@Name("de.catcode.cryptdings.PipelineStall")
+@Label("Pipeline Stall")
+@Category("Cryptdings")
+@Description("The bulk pipeline was full and reading further files had to wait")
+@StackTrace(false)
+class PipelineStallEvent extends Event {
+
+    @Label("Files In Flight")
+    int filesInFlight;
+
+    @Label("Bytes Requested")
+    @Description("Heap reserved for the file that had to wait, 0 if it waited for a free slot")
+    @DataAmount
+    long bytesRequested;
+}
@@ -0,0 +1,219 @@
+package de.catcode.cryptdings;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Liest beliebige Bereiche aus einer Datei im segmentierten Format ({@link SegmentedFormat}), ohne die Datei von vorne
+ * entschlüsseln zu müssen.
+ * <p>
+ * Da alle Segmente bis auf das letzte gleich groß sind, ergibt sich die Position eines Segments im Chiffrat direkt aus
+ * seinem Index: {@code header.length() + index * (segmentSize + TAG_LENGTH)}. Ein separater Index in der Datei ist deshalb
+ * nicht nötig. Für einen Bereich werden nur die Segmente gelesen, entschlüsselt und geprüft, die ihn abdecken. Das
+ * zuletzt entschlüsselte Segment wird vorgehalten, damit kleine aufeinanderfolgende Lesezugriffe es nicht mehrfach öffnen.
+ * <p>
+ * Ein Abschneiden der Datei an einer Segmentgrenze fällt auf, sobald das dann scheinbar letzte Segment gelesen wird,
+ * weil dessen Tag nicht als letztes Segment berechnet wurde.
+ * <p>
+ * Instanzen sind nicht threadsicher.
+ */
+public class SegmentedFileReader implements SeekableByteChannel {
+
+    private static final String AES_GCM_OPERATION_MODE = "AES/GCM/NoPadding";
+
+    private final SeekableByteChannel channel;
+    private final CiphertextHeader header;
+    private final byte[] headerAad;
+    private final SecretKey secretKey;
+    private final Cipher cipher;
+
+    private final long segmentCount;
+    private final long size;
+
+    private final byte[] encryptedSegment;
+    private final byte[] plainSegment;
+    private long cachedSegmentIndex = -1;
+    private int cachedSegmentLength;
+
+    private long position;
+
+    /**
+     * @param channel  der Channel mit dem Chiffrat, z.B. ein {@link java.nio.channels.FileChannel}
+     * @param password das Passwort aus welchem, der für die Entschlüsselung benötigte {@link SecretKey} mit dem übermittelten Salt erzeugt werden soll
+     * @throws IOException wenn der Channel nicht gelesen werden kann oder kein Chiffrat im segmentierten Format enthält
+     */
+    public SegmentedFileReader(final SeekableByteChannel channel, final String password) throws IOException {
+        this(new Crypter(), channel, password);
+    }
+
+    /**
+     * @param crypter  der {@link Crypter} für die Schlüsselableitung, z.B. mit einem {@link DerivedKeyCache}
+     * @param channel  der Channel mit dem Chiffrat, z.B. ein {@link java.nio.channels.FileChannel}
+     * @param password das Passwort aus welchem, der für die Entschlüsselung benötigte {@link SecretKey} mit dem übermittelten Salt erzeugt werden soll
+     * @throws IOException wenn der Channel nicht gelesen werden kann oder kein Chiffrat im segmentierten Format enthält
+     */
+    public SegmentedFileReader(final Crypter crypter, final SeekableByteChannel channel, final String password) throws IOException {
+        this.channel = channel;
+
+        channel.position(0);
+        this.header = CiphertextHeader.read(Channels.newInputStream(channel));
+        if (!header.isSegmented()) {
+            throw new IOException("Channel does not contain the segmented format.");
+        }
+        if (header.isCompressed()) {
+            throw new IOException("Random access is not possible for compressed content.");
+        }
+
+        final long encryptedSegmentSize = header.encryptedSegmentSize();
+        final long encryptedSize = channel.size() - header.length();
+        final long remainder = encryptedSize % encryptedSegmentSize;
+        // Ein volles letztes Segment ergibt keinen Rest, ein kürzeres muss wenigstens den Tag enthalten.
+        if (encryptedSize <= 0 || (remainder != 0 && remainder < SegmentedFormat.TAG_LENGTH)) {
+            throw new IOException("Channel is truncated.");
+        }
+        this.segmentCount = encryptedSize / encryptedSegmentSize + (remainder == 0 ? 0 : 1);
+        SegmentedFormat.checkSegmentIndex(segmentCount - 1);
+        this.size = encryptedSize - segmentCount * SegmentedFormat.TAG_LENGTH;
+
+        this.headerAad = header.aad();
+        this.secretKey = crypter.obtainKey(password, header.salt(), header.iterations());
+        try {
+            this.cipher = Cipher.getInstance(AES_GCM_OPERATION_MODE);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        } catch (NoSuchPaddingException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        }
+        this.encryptedSegment = new byte[header.encryptedSegmentSize()];
+        this.plainSegment = new byte[header.segmentSize()];
+    }
+
+    /**
+     * Liest einen Bereich des Klartexts. Die Position des Channels wird dabei nicht verändert.
+     *
+     * @param position die Position im Klartext, ab der gelesen werden soll
+     * @param length   die maximale Anzahl zu lesender Bytes
+     * @return die gelesenen Bytes, am Ende des Klartexts entsprechend weniger als {@code length}
+     */
+    public byte[] read(final long position, final int length) throws IOException {
+        if (position < 0 || length < 0) {
+            throw new IllegalArgumentException("Position and length must not be negative.");
+        }
+        final int available = (int) Math.max(0, Math.min(length, size - position));
+        final ByteBuffer buffer = ByteBuffer.allocate(available);
+        read(position, buffer);
+        return buffer.array();
+    }
+
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+        if (position >= size) {
+            ensureOpen();
+            return dst.hasRemaining() ? -1 : 0;
+        }
+        final int read = read(position, dst);
+        position += read;
+        return read;
+    }
+
+    private int read(final long from, final ByteBuffer dst) throws IOException {
+        ensureOpen();
+        int read = 0;
+        long current = from;
+        while (dst.hasRemaining() && current < size) {
+            final long segmentIndex = current / header.segmentSize();
+            final int offset = (int) (current % header.segmentSize());
+            openSegment(segmentIndex);
+            final int length = Math.min(dst.remaining(), cachedSegmentLength - offset);
+            dst.put(plainSegment, offset, length);
+            read += length;
+            current += length;
+        }
+        return read;
+    }
+
+    private void openSegment(final long segmentIndex) throws IOException {
+        if (segmentIndex == cachedSegmentIndex) {
+            return;
+        }
+        final boolean last = segmentIndex == segmentCount - 1;
+        final long offset = header.length() + segmentIndex * header.encryptedSegmentSize();
+        final int length = (int) Math.min(header.encryptedSegmentSize(), channel.size() - offset);
+
+        channel.position(offset);
+        readFully(ByteBuffer.wrap(encryptedSegment, 0, length));
+        // Bei einem Fehler darf kein halb geschriebenes Segment als gültig gelten.
+        cachedSegmentIndex = -1;
+        cachedSegmentLength = SegmentedFormat.openSegment(cipher, secretKey, header.iv(), headerAad, (int) segmentIndex, last,
+                encryptedSegment, 0, length, plainSegment, 0);
+        cachedSegmentIndex = segmentIndex;
+    }
+
+    private void readFully(final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Unexpected end of channel.");
+            }
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    @Override
+    public int write(final ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(final long newPosition) throws IOException {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Position must not be negative.");
+        }
+        ensureOpen();
+        this.position = newPosition;
+        return this;
+    }
+
+    /**
+     * @return die Größe des Klartexts
+     */
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(final long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,139 @@
+package de.catcode.cryptdings;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+
+/**
+ * Beschreibt das segmentierte Format und enthält die Hilfsmethoden, die von allen Implementierungen geteilt werden.
+ * <p>
+ * Aufbau:
+ * Header+Segment_0+...+Segment_n
+ * <p>
+ * Der Header ({@link CiphertextHeader}) enthält neben den Parametern der Schlüsselableitung die Segmentgröße und die IV.
+ * <p>
+ * Jedes Segment wird einzeln mit AES/GCM versiegelt und besteht aus dem Chiffrat und dem 16 Byte langen Tag.
+ * Alle Segmente außer dem letzten enthalten exakt {@code segmentSize} Bytes Klartext, das letzte Segment kann kürzer
+ * (auch leer) sein. Die Nonce eines Segments ist die IV der Datei, deren letzte 4 Bytes mit dem Segmentzähler
+ * verknüpft (XOR) werden. Als Additional Authenticated Data (AAD) fließen der Header ({@link CiphertextHeader#aad()})
+ * und ob ein Segment das letzte ist in den Tag ein. Damit fällt sowohl das Vertauschen von Segmenten als auch das
+ * Abschneiden der Datei an einer Segmentgrenze oder eine Änderung am Header auf.
+ * <p>
+ * Angelehnt an die STREAM Konstruktion:
+ * <a href="https://eprint.iacr.org/2015/189.pdf">Online Authenticated-Encryption and its Nonce-Reuse Misuse-Resistance</a>
+ */
+final class SegmentedFormat {
+
+    static final int TAG_LENGTH = 16;
+
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+    // Obergrenze, damit ein manipulierter Header nicht zu beliebig großen Puffern führt.
+    static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final byte[] AAD_INTERMEDIATE = {0};
+    private static final byte[] AAD_LAST = {1};
+
+    private SegmentedFormat() {
+    }
+
+    static void checkSegmentSize(final int segmentSize) {
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segment size must be between 1 and " + MAX_SEGMENT_SIZE + " but was " + segmentSize + ".");
+        }
+    }
+
+    static void checkSegmentIndex(final long segmentIndex) {
+        // Der Zähler hat 32 Bit. Ein Überlauf würde Nonces wiederverwenden.
+        if (segmentIndex > 0xFFFFFFFFL) {
+            throw new IllegalStateException("Too many segments for a single stream.");
+        }
+    }
+
+    /**
+     * Erzeugt die Nonce für das Segment mit dem gegebenen Index. Der Index ist ohne Vorzeichen zu verstehen, womit
+     * 2^32 Segmente pro Datei möglich sind.
+     */
+    static byte[] segmentNonce(final byte[] iv, final int segmentIndex) {
+        final byte[] nonce = iv.clone();
+        nonce[CiphertextHeader.IV_LENGTH - 4] ^= (byte) (segmentIndex >>> 24);
+        nonce[CiphertextHeader.IV_LENGTH - 3] ^= (byte) (segmentIndex >>> 16);
+        nonce[CiphertextHeader.IV_LENGTH - 2] ^= (byte) (segmentIndex >>> 8);
+        nonce[CiphertextHeader.IV_LENGTH - 1] ^= (byte) segmentIndex;
+        return nonce;
+    }
+
+    /**
+     * Versiegelt ein Segment. Der Cipher wird dafür jedes Mal neu initialisiert und kann so wiederverwendet werden.
+     *
+     * @return die Anzahl der in {@code output} geschriebenen Bytes (Chiffrat + Tag)
+     */
+    static int sealSegment(final Cipher cipher, final SecretKey secretKey, final byte[] iv, final byte[] headerAad, final int segmentIndex,
+                           final boolean last,
+                           final byte[] input, final int inputOffset, final int inputLength, final byte[] output, final int outputOffset) {
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey, new GCMParameterSpec(TAG_LENGTH * 8, segmentNonce(iv, segmentIndex)));
+            cipher.updateAAD(headerAad);
+            cipher.updateAAD(last ? AAD_LAST : AAD_INTERMEDIATE);
+            return cipher.doFinal(input, inputOffset, inputLength, output, outputOffset);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | ShortBufferException | IllegalBlockSizeException |
+                 BadPaddingException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        }
+    }
+
+    /**
+     * Öffnet ein Segment und prüft dessen Tag.
+     *
+     * @return die Anzahl der in {@code output} geschriebenen Bytes Klartext
+     * @throws RuntimeException wenn der Tag nicht passt, das Segment also manipuliert, vertauscht oder abgeschnitten wurde
+     */
+    static int openSegment(final Cipher cipher, final SecretKey secretKey, final byte[] iv, final byte[] headerAad, final int segmentIndex,
+                           final boolean last,
+                           final byte[] input, final int inputOffset, final int inputLength, final byte[] output, final int outputOffset) {
+        if (inputLength < TAG_LENGTH) {
+            throw new RuntimeException("Segment " + Integer.toUnsignedString(segmentIndex) + " is truncated.");
+        }
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(TAG_LENGTH * 8, segmentNonce(iv, segmentIndex)));
+            cipher.updateAAD(headerAad);
+            cipher.updateAAD(last ? AAD_LAST : AAD_INTERMEDIATE);
+            return cipher.doFinal(input, inputOffset, inputLength, output, outputOffset);
+        } catch (AEADBadTagException e) {
+            throw new RuntimeException("Authentication of segment " + Integer.toUnsignedString(segmentIndex) + " failed.", e);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | ShortBufferException | IllegalBlockSizeException |
+                 BadPaddingException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        }
+    }
+
+    /**
+     * Öffnet ein Segment aus einem {@link ByteBuffer}. Gelesen wird von der Position bis zum Limit von {@code input}.
+     *
+     * @see #openSegment(Cipher, SecretKey, byte[], byte[], int, boolean, byte[], int, int, byte[], int)
+     */
+    static int openSegment(final Cipher cipher, final SecretKey secretKey, final byte[] iv, final byte[] headerAad, final int segmentIndex,
+                           final boolean last,
+                           final ByteBuffer input, final ByteBuffer output) {
+        if (input.remaining() < TAG_LENGTH) {
+            throw new RuntimeException("Segment " + Integer.toUnsignedString(segmentIndex) + " is truncated.");
+        }
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(TAG_LENGTH * 8, segmentNonce(iv, segmentIndex)));
+            cipher.updateAAD(headerAad);
+            cipher.updateAAD(last ? AAD_LAST : AAD_INTERMEDIATE);
+            return cipher.doFinal(input, output);
+        } catch (AEADBadTagException e) {
+            throw new RuntimeException("Authentication of segment " + Integer.toUnsignedString(segmentIndex) + " failed.", e);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | ShortBufferException | IllegalBlockSizeException |
+                 BadPaddingException e) {
+            throw new RuntimeException("Unhandled exception occurred.", e);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package de.catcode.cryptdings;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+class BulkCrypterTest {
+
+    // wenige Iterationen, damit die vielen Schlüsselableitungen den Test nicht bremsen.
+    private final Crypter crypter = new Crypter(1000, null, Deflater.BEST_SPEED);
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testEncryptAndDecryptTree() throws IOException {
+        final Path source = tempDir.resolve("source");
+        final Path encrypted = tempDir.resolve("encrypted");
+        final Path decrypted = tempDir.resolve("decrypted");
+        Files.createDirectories(source.resolve("a/b"));
+        Files.write(source.resolve("empty.txt"), new byte[0]);
+        Files.writeString(source.resolve("a/text.json"), "{\"id\": 42}\n".repeat(1000));
+        for (int i = 0; i < 20; i++) {
+            final byte[] content = new byte[i * 5000];
+            new Random(i).nextBytes(content);
+            Files.write(source.resolve("a/b/file" + i), content);
+        }
+
+        // kleine Pipeline, damit es zu Stalls kommt.
+        try (final BulkCrypter bulkCrypter = new BulkCrypter(crypter, 2, 2, 2, false)) {
+            final BulkStatistics encryptStatistics = bulkCrypter.encrypt(source, encrypted, "test123");
+            Assertions.assertEquals(22, encryptStatistics.getFiles());
+            Assertions.assertTrue(encryptStatistics.getFailures().isEmpty());
+            Assertions.assertTrue(Files.exists(encrypted.resolve("a/text.json" + BulkCrypter.ENCRYPTED_SUFFIX)));
+
+            final BulkStatistics decryptStatistics = bulkCrypter.decrypt(encrypted, decrypted, "test123");
+            Assertions.assertEquals(22, decryptStatistics.getFiles());
+            Assertions.assertEquals(encryptStatistics.getBytesRead(), decryptStatistics.getBytesWritten());
+        }
+
+        Assertions.assertArrayEquals(Files.readAllBytes(source.resolve("a/text.json")), Files.readAllBytes(decrypted.resolve("a/text.json")));
+        for (int i = 0; i < 20; i++) {
+            Assertions.assertArrayEquals(Files.readAllBytes(source.resolve("a/b/file" + i)), Files.readAllBytes(decrypted.resolve("a/b/file" + i)));
+        }
+        Assertions.assertEquals(0, Files.size(decrypted.resolve("empty.txt")));
+    }
+
+    @Test
+    void testFailuresDoNotStopTheRun() throws IOException {
+        final Path source = tempDir.resolve("source");
+        final Path decrypted = tempDir.resolve("decrypted");
+        Files.createDirectories(source);
+        Files.writeString(source.resolve("garbage.enc"), "kein Chiffrat", StandardCharsets.UTF_8);
+        Files.createDirectories(tempDir.resolve("plain"));
+        Files.writeString(tempDir.resolve("plain/ok.txt"), "ok", StandardCharsets.UTF_8);
+        try (final BulkCrypter bulkCrypter = new BulkCrypter(crypter, 2, 2, 4, false)) {
+            bulkCrypter.encrypt(tempDir.resolve("plain"), source, "test123");
+            final BulkStatistics statistics = bulkCrypter.decrypt(source, decrypted, "test123");
+
+            Assertions.assertEquals(1, statistics.getFiles());
+            Assertions.assertEquals(1, statistics.getFailures().size());
+            Assertions.assertTrue(statistics.getFailures().containsKey(source.resolve("garbage.enc")));
+            Assertions.assertEquals("ok", Files.readString(decrypted.resolve("ok.txt")));
+        }
+    }
+
+    @Test
+    void testBytesInFlightAreLimited() throws IOException {
+        final Path source = tempDir.resolve("source");
+        final Path encrypted = tempDir.resolve("encrypted");
+        Files.createDirectories(source);
+        for (int i = 0; i < 20; i++) {
+            final byte[] content = new byte[50 * 1024];
+            new Random(i).nextBytes(content);
+            Files.write(source.resolve("file" + i), content);
+        }
+        // zu groß für das Limit, wird deshalb als Strom verarbeitet.
+        Files.write(source.resolve("large"), new byte[200 * 1024]);
+
+        // Platz für zwei Dateien im Speicher, obwohl viele Dateien in der Pipeline sein dürften.
+        final long maxBytesInFlight = 2 * BulkCrypter.IN_MEMORY_FACTOR * 50 * 1024;
+        try (final BulkCrypter bulkCrypter = new BulkCrypter(crypter, 4, 4, 16, maxBytesInFlight, false)) {
+            final BulkStatistics statistics = bulkCrypter.encrypt(source, encrypted, "test123");
+
+            Assertions.assertEquals(21, statistics.getFiles());
+            Assertions.assertTrue(statistics.getFailures().isEmpty());
+            Assertions.assertTrue(statistics.getMaxBytesInFlight() > 0);
+            Assertions.assertTrue(statistics.getMaxBytesInFlight() <= maxBytesInFlight, statistics.summary());
+        }
+    }
+
+    @Test
+    void testSingleFileSource() throws IOException {
+        final Path source = Files.writeString(tempDir.resolve("single.txt"), "ok", StandardCharsets.UTF_8);
+        final Path encrypted = tempDir.resolve("encrypted");
+        final Path decrypted = tempDir.resolve("decrypted");
+        try (final BulkCrypter bulkCrypter = new BulkCrypter(crypter, 2, 2, 4, false)) {
+            Assertions.assertEquals(1, bulkCrypter.encrypt(source, encrypted, "test123").getFiles());
+            final Path encryptedFile = encrypted.resolve("single.txt" + BulkCrypter.ENCRYPTED_SUFFIX);
+            Assertions.assertTrue(Files.exists(encryptedFile));
+
+            Assertions.assertEquals(1, bulkCrypter.decrypt(encryptedFile, decrypted, "test123").getFiles());
+        }
+        Assertions.assertEquals("ok", Files.readString(decrypted.resolve("single.txt")));
+    }
+
+    @Test
+    void testUnreadableDirectoryIsRecordedAsFailure() throws IOException {
+        final Path source = tempDir.resolve("source");
+        final Path locked = source.resolve("locked");
+        Files.createDirectories(locked);
+        Files.writeString(source.resolve("ok.txt"), "ok", StandardCharsets.UTF_8);
+        Files.writeString(locked.resolve("secret.txt"), "secret", StandardCharsets.UTF_8);
+        Files.setPosixFilePermissions(locked, PosixFilePermissions.fromString("---------"));
+        try {
+            // root darf das Verzeichnis trotzdem lesen.
+            Assumptions.assumeFalse(Files.isReadable(locked));
+            try (final BulkCrypter bulkCrypter = new BulkCrypter(crypter, 2, 2, 4, false)) {
+                final BulkStatistics statistics = bulkCrypter.encrypt(source, tempDir.resolve("encrypted"), "test123");
+
+                Assertions.assertTrue(statistics.getFailures().containsKey(locked));
+            }
+        } finally {
+            Files.setPosixFilePermissions(locked, PosixFilePermissions.fromString("rwx------"));
+        }
+    }
+}
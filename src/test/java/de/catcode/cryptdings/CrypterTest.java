@@ -2,14 +2,27 @@ package de.catcode.cryptdings;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.HexFormat;
+import java.util.Random;
+import java.util.zip.Deflater;
 
 class CrypterTest {
 
@@ -50,6 +63,296 @@ class CrypterTest {
 
     }
 
+    @Test
+    void testEncryptAndDecryptSegmented() {
+        final byte[] randomSalt = crypter.generateRandomSalt();
+        final SecretKey secretKey = crypter.deriveFromPassword("test123", randomSalt);
+        final byte[] testContent = getTestContent().getBytes(StandardCharsets.UTF_8);
+
+        // kleine Segmente, damit der Testinhalt über viele Segmente verteilt wird. Inklusive leerer Eingabe und exaktem Vielfachen der Segmentgröße.
+        for (final int length : new int[]{0, 1, 100, 1000, testContent.length}) {
+            final byte[] content = Arrays.copyOf(testContent, length);
+            final ByteArrayOutputStream encryptedOutputStream = new ByteArrayOutputStream();
+            crypter.encryptSegmented(new ByteArrayInputStream(content), encryptedOutputStream, secretKey, randomSalt, 100);
+
+            final ByteArrayOutputStream decryptedOutputStream = new ByteArrayOutputStream();
+            crypter.decrypt(new ByteArrayInputStream(encryptedOutputStream.toByteArray()), decryptedOutputStream, "test123");
+
+            Assertions.assertArrayEquals(content, decryptedOutputStream.toByteArray());
+        }
+    }
+
+    @Test
+    void testSegmentedDetectsTruncation() {
+        final byte[] randomSalt = crypter.generateRandomSalt();
+        final SecretKey secretKey = crypter.deriveFromPassword("test123", randomSalt);
+        final byte[] testContent = getTestContent().getBytes(StandardCharsets.UTF_8);
+
+        final ByteArrayOutputStream encryptedOutputStream = new ByteArrayOutputStream();
+        crypter.encryptSegmented(new ByteArrayInputStream(testContent), encryptedOutputStream, secretKey, randomSalt, 100);
+        final byte[] encrypted = encryptedOutputStream.toByteArray();
+        final int headerLength = headerLength(encrypted);
+
+        // Abschneiden genau an einer Segmentgrenze. Jedes Segment ist 100 Bytes Klartext + 16 Bytes Tag.
+        final byte[] truncated = Arrays.copyOf(encrypted, headerLength + 3 * 116);
+        Assertions.assertThrows(RuntimeException.class,
+                () -> crypter.decrypt(new ByteArrayInputStream(truncated), new ByteArrayOutputStream(), "test123"));
+
+        // Manipulation eines einzelnen Bytes im Chiffrat.
+        final byte[] manipulated = encrypted.clone();
+        manipulated[headerLength + 200] ^= 1;
+        Assertions.assertThrows(RuntimeException.class,
+                () -> crypter.decrypt(new ByteArrayInputStream(manipulated), new ByteArrayOutputStream(), "test123"));
+    }
+
+    @Test
+    void testEncryptAndDecryptChannels() {
+        final byte[] randomSalt = crypter.generateRandomSalt();
+        final SecretKey secretKey = crypter.deriveFromPassword("test123", randomSalt);
+        final byte[] testContent = getTestContent().getBytes(StandardCharsets.UTF_8);
+
+        // Channel verschlüsselt, Stream entschlüsselt. Kleine Puffer, damit mehrere Durchläufe nötig sind.
+        final ByteArrayOutputStream channelEncrypted = new ByteArrayOutputStream();
+        crypter.encrypt(Channels.newChannel(new ByteArrayInputStream(testContent)), Channels.newChannel(channelEncrypted), secretKey, randomSalt, 333);
+        final ByteArrayOutputStream streamDecrypted = new ByteArrayOutputStream();
+        crypter.decrypt(new ByteArrayInputStream(channelEncrypted.toByteArray()), streamDecrypted, "test123");
+        Assertions.assertArrayEquals(testContent, streamDecrypted.toByteArray());
+
+        // Stream verschlüsselt, Channel entschlüsselt
+        final ByteArrayOutputStream streamEncrypted = new ByteArrayOutputStream();
+        crypter.encrypt(new ByteArrayInputStream(testContent), streamEncrypted, secretKey, randomSalt);
+        final ByteArrayOutputStream channelDecrypted = new ByteArrayOutputStream();
+        crypter.decrypt(Channels.newChannel(new ByteArrayInputStream(streamEncrypted.toByteArray())), Channels.newChannel(channelDecrypted), "test123", 333);
+        Assertions.assertArrayEquals(testContent, channelDecrypted.toByteArray());
+
+        // segmentiert verschlüsselt, Channel entschlüsselt
+        final ByteArrayOutputStream segmentedEncrypted = new ByteArrayOutputStream();
+        crypter.encryptSegmented(new ByteArrayInputStream(testContent), segmentedEncrypted, secretKey, randomSalt, 100);
+        final ByteArrayOutputStream segmentedDecrypted = new ByteArrayOutputStream();
+        crypter.decrypt(Channels.newChannel(new ByteArrayInputStream(segmentedEncrypted.toByteArray())), Channels.newChannel(segmentedDecrypted), "test123");
+        Assertions.assertArrayEquals(testContent, segmentedDecrypted.toByteArray());
+    }
+
+    @Test
+    void testChannelBuffersAreIndependentOfPreviousCalls(@TempDir final Path tempDir) throws IOException {
+        final byte[] randomSalt = crypter.generateRandomSalt();
+        final SecretKey secretKey = crypter.deriveFromPassword("test123", randomSalt);
+        // größer als ein Segment, damit ein FileChannel mehr als den angeforderten Puffer auf einmal liefern könnte.
+        final byte[] testContent = getTestContent().repeat(20).getBytes(StandardCharsets.UTF_8);
+        final Path plainFile = tempDir.resolve("plain.txt");
+        Files.write(plainFile, testContent);
+
+        // Die segmentierte Entschlüsselung vergrößert die Puffer des Threads, danach wird mit kleinem Puffer verschlüsselt.
+        final ByteArrayOutputStream segmentedEncrypted = new ByteArrayOutputStream();
+        crypter.encryptSegmented(new ByteArrayInputStream(testContent), segmentedEncrypted, secretKey, randomSalt);
+        crypter.decrypt(Channels.newChannel(new ByteArrayInputStream(segmentedEncrypted.toByteArray())),
+                Channels.newChannel(new ByteArrayOutputStream()), "test123");
+
+        final ByteArrayOutputStream channelEncrypted = new ByteArrayOutputStream();
+        try (final FileChannel source = FileChannel.open(plainFile)) {
+            crypter.encrypt(source, Channels.newChannel(channelEncrypted), secretKey, randomSalt, 333);
+        }
+        final ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        crypter.decrypt(new ByteArrayInputStream(channelEncrypted.toByteArray()), decrypted, "test123");
+        Assertions.assertArrayEquals(testContent, decrypted.toByteArray());
+    }
+
+    @Test
+    void testInvalidBufferSizeIsRejected(@TempDir final Path tempDir) throws IOException {
+        final byte[] randomSalt = crypter.generateRandomSalt();
+        final SecretKey secretKey = crypter.deriveFromPassword("test123", randomSalt);
+        final Path plainFile = Files.write(tempDir.resolve("plain.txt"), getTestContent().getBytes(StandardCharsets.UTF_8));
+        final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        crypter.encrypt(new ByteArrayInputStream(getTestContent().getBytes(StandardCharsets.UTF_8)), encrypted, secretKey, randomSalt);
+
+        for (final int bufferSize : new int[]{0, -1, Crypter.MAX_BUFFER_SIZE + 1}) {
+            try (final FileChannel source = FileChannel.open(plainFile)) {
+                Assertions.assertThrows(IllegalArgumentException.class,
+                        () -> crypter.encrypt(source, Channels.newChannel(new ByteArrayOutputStream()), secretKey, randomSalt, bufferSize));
+                Assertions.assertThrows(IllegalArgumentException.class,
+                        () -> crypter.encryptMapped(source, Channels.newChannel(new ByteArrayOutputStream()), secretKey, randomSalt, bufferSize));
+            }
+            Assertions.assertThrows(IllegalArgumentException.class, () -> crypter.decrypt(Channels.newChannel(new ByteArrayInputStream(encrypted.toByteArray())),
+                    Channels.newChannel(new ByteArrayOutputStream()), "test123", bufferSize));
+        }
+    }
+
+    @Test
+    void testEncryptMappedFile(@TempDir final Path tempDir) throws IOException {
+        final byte[] randomSalt = crypter.generateRandomSalt();
+        final SecretKey secretKey = crypter.deriveFromPassword("test123", randomSalt);
+        final byte[] testContent = getTestContent().getBytes(StandardCharsets.UTF_8);
+        final Path plainFile = Files.write(tempDir.resolve("plain.txt"), testContent);
+        final Path encryptedFile = tempDir.resolve("plain.txt.enc");
+        final Path decryptedFile = tempDir.resolve("decrypted.txt");
+
+        try (final FileChannel source = FileChannel.open(plainFile, StandardOpenOption.READ);
+             final FileChannel target = FileChannel.open(encryptedFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            crypter.encryptMapped(source, target, secretKey, randomSalt, 1000);
+        }
+        try (final FileChannel source = FileChannel.open(encryptedFile, StandardOpenOption.READ);
+             final FileChannel target = FileChannel.open(decryptedFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            crypter.decrypt(source, target, "test123");
+        }
+
+        Assertions.assertArrayEquals(testContent, Files.readAllBytes(decryptedFile));
+    }
+
+    @Test
+    void testIterationsAreReadFromHeader() {
+        final Crypter fastCrypter = new Crypter(1000, null);
+        final byte[] randomSalt = fastCrypter.generateRandomSalt();
+        final SecretKey secretKey = fastCrypter.deriveFromPassword("test123", randomSalt);
+        final byte[] testContent = getTestContent().getBytes(StandardCharsets.UTF_8);
+
+        final ByteArrayOutputStream encryptedOutputStream = new ByteArrayOutputStream();
+        fastCrypter.encrypt(new ByteArrayInputStream(testContent), encryptedOutputStream, secretKey, randomSalt);
+
+        // der Crypter mit Standard-Iterationen entschlüsselt mit den Iterationen aus dem Header.
+        final ByteArrayOutputStream decryptedOutputStream = new ByteArrayOutputStream();
+        crypter.decrypt(new ByteArrayInputStream(encryptedOutputStream.toByteArray()), decryptedOutputStream, "test123");
+
+        Assertions.assertArrayEquals(testContent, decryptedOutputStream.toByteArray());
+    }
+
+    @Test
+    void testHeaderRecordsIterationsOfKey() {
+        final Crypter fastCrypter = new Crypter(1000, null);
+        final byte[] randomSalt = fastCrypter.generateRandomSalt();
+        final SecretKey secretKey = fastCrypter.deriveFromPassword("test123", randomSalt);
+        final byte[] testContent = getTestContent().getBytes(StandardCharsets.UTF_8);
+
+        // der Crypter mit Standard-Iterationen verschlüsselt, im Header stehen trotzdem die Iterationen des Schlüssels.
+        final ByteArrayOutputStream streamEncrypted = new ByteArrayOutputStream();
+        crypter.encrypt(new ByteArrayInputStream(testContent), streamEncrypted, secretKey, randomSalt);
+        final ByteArrayOutputStream segmentedEncrypted = new ByteArrayOutputStream();
+        crypter.encryptSegmented(new ByteArrayInputStream(testContent), segmentedEncrypted, secretKey, randomSalt);
+
+        for (final byte[] encrypted : new byte[][]{streamEncrypted.toByteArray(), segmentedEncrypted.toByteArray()}) {
+            Assertions.assertEquals(1000, readHeader(encrypted).iterations());
+            final ByteArrayOutputStream decryptedOutputStream = new ByteArrayOutputStream();
+            crypter.decrypt(new ByteArrayInputStream(encrypted), decryptedOutputStream, "test123");
+            Assertions.assertArrayEquals(testContent, decryptedOutputStream.toByteArray());
+        }
+    }
+
+    @Test
+    void testEncryptRejectsSaltOfOtherKey() {
+        final SecretKey secretKey = crypter.deriveFromPassword("test123", crypter.generateRandomSalt());
+        final byte[] otherSalt = crypter.generateRandomSalt();
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> crypter.encrypt(new ByteArrayInputStream(new byte[0]),
+                new ByteArrayOutputStream(), secretKey, otherSalt));
+    }
+
+    @Test
+    void testDecryptLegacyFormat() throws Exception {
+        final byte[] salt = "testSalt".getBytes(StandardCharsets.UTF_8);
+        final SecretKey secretKey = crypter.deriveFromPassword("test123", salt);
+        final byte[] iv = new byte[12];
+        final byte[] testContent = getTestContent().getBytes(StandardCharsets.UTF_8);
+
+        // altes Format: Salt(8)+IV(12)+Cipher ohne Magic.
+        final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, secretKey, new GCMParameterSpec(128, iv));
+        final ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+        legacy.write(salt);
+        legacy.write(iv);
+        legacy.write(cipher.doFinal(testContent));
+
+        final ByteArrayOutputStream decryptedOutputStream = new ByteArrayOutputStream();
+        crypter.decrypt(new ByteArrayInputStream(legacy.toByteArray()), decryptedOutputStream, "test123");
+
+        Assertions.assertArrayEquals(testContent, decryptedOutputStream.toByteArray());
+    }
+
+    @Test
+    void testCalibrateIterations() {
+        final int iterations = crypter.calibrateIterations(Duration.ofMillis(50));
+
+        Assertions.assertTrue(iterations >= 10_000 && iterations <= CiphertextHeader.MAX_ITERATIONS);
+    }
+
+    @Test
+    void testEncryptAndDecryptCompressed() {
+        final Crypter compressingCrypter = new Crypter(1000, null, Deflater.BEST_SPEED);
+        final byte[] randomSalt = compressingCrypter.generateRandomSalt();
+        final SecretKey secretKey = compressingCrypter.deriveFromPassword("test123", randomSalt);
+        final byte[] testContent = getTestContent().repeat(20).getBytes(StandardCharsets.UTF_8);
+
+        final ByteArrayOutputStream streamEncrypted = new ByteArrayOutputStream();
+        compressingCrypter.encrypt(new ByteArrayInputStream(testContent), streamEncrypted, secretKey, randomSalt);
+        final ByteArrayOutputStream segmentedEncrypted = new ByteArrayOutputStream();
+        compressingCrypter.encryptSegmented(new ByteArrayInputStream(testContent), segmentedEncrypted, secretKey, randomSalt, 1000);
+
+        for (final byte[] encrypted : new byte[][]{streamEncrypted.toByteArray(), segmentedEncrypted.toByteArray()}) {
+            Assertions.assertTrue(readHeader(encrypted).isCompressed());
+            Assertions.assertTrue(encrypted.length < testContent.length / 5);
+
+            // entpackt wird anhand des Headers, auch von einem Crypter ohne eingestellte Kompression.
+            final ByteArrayOutputStream streamDecrypted = new ByteArrayOutputStream();
+            crypter.decrypt(new ByteArrayInputStream(encrypted), streamDecrypted, "test123");
+            Assertions.assertArrayEquals(testContent, streamDecrypted.toByteArray());
+
+            final ByteArrayOutputStream channelDecrypted = new ByteArrayOutputStream();
+            crypter.decrypt(Channels.newChannel(new ByteArrayInputStream(encrypted)), Channels.newChannel(channelDecrypted), "test123", 333);
+            Assertions.assertArrayEquals(testContent, channelDecrypted.toByteArray());
+        }
+    }
+
+    @Test
+    void testManipulatedHeaderFlagsAreDetected() {
+        final Crypter compressingCrypter = new Crypter(1000, null, Deflater.BEST_SPEED);
+        final byte[] randomSalt = compressingCrypter.generateRandomSalt();
+        final SecretKey secretKey = compressingCrypter.deriveFromPassword("test123", randomSalt);
+        final byte[] testContent = getTestContent().repeat(10).getBytes(StandardCharsets.UTF_8);
+
+        final ByteArrayOutputStream streamEncrypted = new ByteArrayOutputStream();
+        compressingCrypter.encrypt(new ByteArrayInputStream(testContent), streamEncrypted, secretKey, randomSalt);
+        final ByteArrayOutputStream segmentedEncrypted = new ByteArrayOutputStream();
+        compressingCrypter.encryptSegmented(new ByteArrayInputStream(testContent), segmentedEncrypted, secretKey, randomSalt, 1000);
+
+        // Die Flags stehen hinter Magic(8)+Version(1).
+        for (final byte[] encrypted : new byte[][]{streamEncrypted.toByteArray(), segmentedEncrypted.toByteArray()}) {
+            for (final int flag : new int[]{CiphertextHeader.FLAG_SEGMENTED, CiphertextHeader.FLAG_COMPRESSED}) {
+                final byte[] manipulated = encrypted.clone();
+                manipulated[9] ^= (byte) flag;
+                Assertions.assertThrows(RuntimeException.class, () -> compressingCrypter.decrypt(new ByteArrayInputStream(manipulated),
+                        new ByteArrayOutputStream(), "test123"));
+            }
+        }
+    }
+
+    @Test
+    void testIncompressibleContentIsNotCompressed() {
+        final Crypter compressingCrypter = new Crypter(1000, null, Deflater.DEFAULT_COMPRESSION);
+        final byte[] randomSalt = compressingCrypter.generateRandomSalt();
+        final SecretKey secretKey = compressingCrypter.deriveFromPassword("test123", randomSalt);
+        final byte[] content = new byte[200_000];
+        new Random(42).nextBytes(content);
+
+        final ByteArrayOutputStream encryptedOutputStream = new ByteArrayOutputStream();
+        compressingCrypter.encrypt(new ByteArrayInputStream(content), encryptedOutputStream, secretKey, randomSalt);
+        final byte[] encrypted = encryptedOutputStream.toByteArray();
+
+        Assertions.assertFalse(readHeader(encrypted).isCompressed());
+        final ByteArrayOutputStream decryptedOutputStream = new ByteArrayOutputStream();
+        crypter.decrypt(new ByteArrayInputStream(encrypted), decryptedOutputStream, "test123");
+        Assertions.assertArrayEquals(content, decryptedOutputStream.toByteArray());
+    }
+
+    private int headerLength(final byte[] encrypted) {
+        return readHeader(encrypted).length();
+    }
+
+    private CiphertextHeader readHeader(final byte[] encrypted) {
+        try {
+            return CiphertextHeader.read(new ByteArrayInputStream(encrypted));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private String getTestContent() {
         return """
                 Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt ut labore et dolore magna aliqua. A erat nam at lectus urna duis convallis convallis. Ultricies lacus sed turpis tincidunt id. Sagittis nisl rhoncus mattis rhoncus urna neque. Dui vivamus arcu felis bibendum. Nascetur ridiculus mus mauris vitae ultricies. Eros in cursus turpis massa. Ipsum dolor sit amet consectetur. Arcu non odio euismod lacinia at quis. Consequat nisl vel pretium lectus quam id leo.
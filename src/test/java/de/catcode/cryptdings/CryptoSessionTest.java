@@ -0,0 +1,103 @@
+package de.catcode.cryptdings;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+class CryptoSessionTest {
+
+    private final Crypter crypter = new Crypter();
+
+    @Test
+    void testSealAndOpen() {
+        final CryptoSession session = new CryptoSession(crypter, "test123");
+        final CryptoSession receiver = new CryptoSession(crypter, "test123", session.getSalt());
+
+        final byte[] message = "Lorem ipsum dolor sit amet".getBytes(StandardCharsets.UTF_8);
+        final byte[] record = session.seal(message);
+
+        Assertions.assertEquals(message.length + CryptoSession.OVERHEAD, record.length);
+        Assertions.assertArrayEquals(message, receiver.open(record));
+        Assertions.assertArrayEquals(message, session.open(record));
+        Assertions.assertArrayEquals(new byte[0], receiver.open(session.seal(new byte[0])));
+    }
+
+    @Test
+    void testReceiverUsesIterationsOfSender() {
+        final CryptoSession session = new CryptoSession(new Crypter(1000, null), "test123");
+        // der Empfänger ist mit den Standard-Iterationen kalibriert.
+        final CryptoSession receiver = new CryptoSession(crypter, "test123", session.getSalt(), session.getIterations());
+
+        final byte[] message = "Lorem ipsum dolor sit amet".getBytes(StandardCharsets.UTF_8);
+        Assertions.assertEquals(1000, receiver.getIterations());
+        Assertions.assertArrayEquals(message, receiver.open(session.seal(message)));
+    }
+
+    @Test
+    void testSealAndOpenByteBuffers() {
+        final CryptoSession session = new CryptoSession(crypter, "test123");
+        final ByteBuffer records = ByteBuffer.allocateDirect(1024);
+        final ByteBuffer plaintext = ByteBuffer.allocateDirect(1024);
+
+        // zwei Nachrichten hintereinander in den gleichen Puffer
+        final int first = session.seal(ByteBuffer.wrap("first".getBytes(StandardCharsets.UTF_8)), records);
+        final int second = session.seal(ByteBuffer.wrap("second".getBytes(StandardCharsets.UTF_8)), records);
+        records.flip();
+
+        Assertions.assertEquals(5, session.open(records.slice(0, first), plaintext));
+        Assertions.assertEquals(6, session.open(records.slice(first, second), plaintext));
+        plaintext.flip();
+        final byte[] decrypted = new byte[plaintext.remaining()];
+        plaintext.get(decrypted);
+        Assertions.assertEquals("firstsecond", new String(decrypted, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testNoncesAreUnique() {
+        final CryptoSession session = new CryptoSession(crypter, "test123");
+        final Set<String> nonces = ConcurrentHashMap.newKeySet();
+
+        IntStream.range(0, 10_000).parallel().forEach(i -> {
+            final byte[] record = session.seal(new byte[200]);
+            nonces.add(Arrays.toString(Arrays.copyOf(record, CryptoSession.NONCE_LENGTH)));
+        });
+
+        Assertions.assertEquals(10_000, nonces.size());
+    }
+
+    @Test
+    void testDetectsManipulation() {
+        final CryptoSession session = new CryptoSession(crypter, "test123");
+        final byte[] record = session.seal(new byte[200]);
+        record[CryptoSession.NONCE_LENGTH + 10] ^= 1;
+
+        Assertions.assertThrows(RuntimeException.class, () -> session.open(record));
+    }
+
+    @Test
+    void testRotationLimit() {
+        final CryptoSession session = new CryptoSession(crypter, "test123", 3);
+        final Set<String> records = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            records.add(Arrays.toString(session.seal(new byte[16])));
+        }
+
+        Assertions.assertEquals(3, records.size());
+        Assertions.assertThrows(IllegalStateException.class, () -> session.seal(new byte[16]));
+    }
+
+    @Test
+    void testSessionWithExistingSaltCannotSeal() {
+        final CryptoSession session = new CryptoSession(crypter, "test123");
+        final CryptoSession receiver = new CryptoSession(crypter, "test123", session.getSalt());
+
+        Assertions.assertThrows(IllegalStateException.class, () -> receiver.seal(new byte[16]));
+    }
+}
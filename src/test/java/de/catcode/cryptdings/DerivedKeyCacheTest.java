@@ -0,0 +1,151 @@
+package de.catcode.cryptdings;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+class DerivedKeyCacheTest {
+
+    private final byte[] salt = "testSalt".getBytes(StandardCharsets.UTF_8);
+    private final AtomicLong ticker = new AtomicLong();
+    private final AtomicInteger derivations = new AtomicInteger();
+
+    @Test
+    void testHitsAndMisses() {
+        final DerivedKeyCache cache = new DerivedKeyCache(10, Duration.ofMinutes(1), ticker::get);
+
+        final SecretKey first = cache.get("test123", salt, 1000, this::derive);
+        final SecretKey second = cache.get("test123", salt, 1000, this::derive);
+        cache.get("other", salt, 1000, this::derive);
+        cache.get("test123", salt, 2000, this::derive);
+
+        Assertions.assertArrayEquals(first.getEncoded(), second.getEncoded());
+        Assertions.assertEquals(3, derivations.get());
+        Assertions.assertEquals(1, cache.getHitCount());
+        Assertions.assertEquals(3, cache.getMissCount());
+    }
+
+    @Test
+    void testTimeToLive() {
+        final DerivedKeyCache cache = new DerivedKeyCache(10, Duration.ofSeconds(10), ticker::get);
+
+        cache.get("test123", salt, 1000, this::derive);
+        ticker.addAndGet(Duration.ofSeconds(11).toNanos());
+        cache.get("test123", salt, 1000, this::derive);
+
+        Assertions.assertEquals(2, derivations.get());
+        Assertions.assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    void testMaxSizeEvictsLeastRecentlyUsed() {
+        final DerivedKeyCache cache = new DerivedKeyCache(2, Duration.ofMinutes(1), ticker::get);
+
+        cache.get("a", salt, 1000, this::derive);
+        cache.get("b", salt, 1000, this::derive);
+        cache.get("a", salt, 1000, this::derive);
+        // verdrängt "b", da "a" zuletzt benutzt wurde
+        cache.get("c", salt, 1000, this::derive);
+        cache.get("a", salt, 1000, this::derive);
+
+        Assertions.assertEquals(2, cache.size());
+        Assertions.assertEquals(3, derivations.get());
+        Assertions.assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    void testEvictedKeyMaterialIsWiped() {
+        final DerivedKeyCache cache = new DerivedKeyCache(1, Duration.ofMinutes(1), ticker::get);
+        final byte[] material = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+        final List<byte[]> handedOut = new ArrayList<>();
+        final SecretKey secretKey = cache.get("a", salt, 1000, () -> new SecretKeySpec(material, "AES") {
+            @Override
+            public byte[] getEncoded() {
+                // direkter Zugriff auf das Material, das im Cache abgelegt wird
+                final byte[] encoded = super.getEncoded();
+                handedOut.add(encoded);
+                return encoded;
+            }
+        });
+
+        cache.clear();
+
+        Assertions.assertArrayEquals(new byte[16], handedOut.get(0));
+        // die herausgegebene Kopie bleibt gültig
+        Assertions.assertArrayEquals(material, secretKey.getEncoded());
+    }
+
+    @Test
+    void testConcurrentMissesDeriveOnlyOnce() throws Exception {
+        final DerivedKeyCache cache = new DerivedKeyCache(10, Duration.ofMinutes(1));
+        final CountDownLatch derivationStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<SecretKey>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executorService.submit(() -> cache.get("test123", salt, 1000, () -> {
+                    derivationStarted.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return derive();
+                })));
+            }
+            derivationStarted.await();
+            // allen Threads Zeit geben, auf den laufenden Eintrag zu treffen
+            Thread.sleep(100);
+            release.countDown();
+            for (final Future<SecretKey> future : futures) {
+                Assertions.assertNotNull(future.get());
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        Assertions.assertEquals(1, derivations.get());
+        Assertions.assertEquals(7, cache.getHitCount());
+        Assertions.assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    void testCrypterUsesCacheForDecrypt() {
+        final DerivedKeyCache cache = new DerivedKeyCache(10, Duration.ofMinutes(1));
+        final Crypter crypter = new Crypter(cache);
+        final SecretKey secretKey = crypter.deriveFromPassword("test123", salt);
+
+        for (int i = 0; i < 3; i++) {
+            final byte[] content = ("message " + i).getBytes(StandardCharsets.UTF_8);
+            final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+            crypter.encrypt(new ByteArrayInputStream(content), encrypted, secretKey, salt);
+            final ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+            crypter.decrypt(new ByteArrayInputStream(encrypted.toByteArray()), decrypted, "test123");
+            Assertions.assertArrayEquals(content, decrypted.toByteArray());
+        }
+
+        Assertions.assertEquals(1, cache.getMissCount());
+        Assertions.assertEquals(2, cache.getHitCount());
+    }
+
+    private SecretKey derive() {
+        derivations.incrementAndGet();
+        // keine echte Ableitung, es kommt nur auf die Anzahl der Aufrufe an
+        return new SecretKeySpec(new byte[32], "AES");
+    }
+}
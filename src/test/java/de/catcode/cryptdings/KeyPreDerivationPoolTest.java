@@ -0,0 +1,85 @@
+package de.catcode.cryptdings;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKey;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+class KeyPreDerivationPoolTest {
+
+    @Test
+    void testTakeReturnsFreshPairs() throws InterruptedException {
+        final Crypter crypter = new Crypter();
+        try (final KeyPreDerivationPool pool = new KeyPreDerivationPool(crypter, "test123", 3, 2)) {
+            awaitQueueDepth(pool, 3);
+
+            final Set<String> salts = new HashSet<>();
+            for (int i = 0; i < 5; i++) {
+                final KeyPreDerivationPool.DerivedKey derivedKey = pool.take();
+                Assertions.assertTrue(salts.add(Arrays.toString(derivedKey.salt())));
+                Assertions.assertArrayEquals(crypter.deriveFromPassword("test123", derivedKey.salt()).getEncoded(),
+                        derivedKey.secretKey().getEncoded());
+            }
+            Assertions.assertEquals(5, pool.getTakeCount());
+        }
+    }
+
+    @Test
+    void testStarvationDerivesOnCallingThread() {
+        final CountDownLatch release = new CountDownLatch(1);
+        // Die Hintergrund-Threads hängen, bis der Test sie freigibt. Der aufrufende Thread wird nicht blockiert.
+        final Crypter crypter = new Crypter() {
+            @Override
+            public SecretKey deriveFromPassword(final String password, final byte[] salt) {
+                if (Thread.currentThread().getName().startsWith("key-pre-derivation")) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.deriveFromPassword(password, salt);
+            }
+        };
+        try (final KeyPreDerivationPool pool = new KeyPreDerivationPool(crypter, "test123", 2, 1)) {
+            Assertions.assertNotNull(pool.take().secretKey());
+            Assertions.assertEquals(0, pool.getQueueDepth());
+            Assertions.assertEquals(1, pool.getStarvationCount());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    void testFailedDerivationIsCountedAndNotQueued() throws InterruptedException {
+        // Wie bei einem fehlenden Algorithmus liefert die Ableitung keinen Schlüssel.
+        final Crypter crypter = new Crypter() {
+            @Override
+            public SecretKey deriveFromPassword(final String password, final byte[] salt) {
+                return null;
+            }
+        };
+        try (final KeyPreDerivationPool pool = new KeyPreDerivationPool(crypter, "test123", 2, 2)) {
+            final long deadline = System.nanoTime() + 30_000_000_000L;
+            while (pool.getFailureCount() < 2 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            Assertions.assertEquals(2, pool.getFailureCount());
+            Assertions.assertInstanceOf(IllegalStateException.class, pool.getLastFailure());
+            Assertions.assertEquals(0, pool.getQueueDepth());
+            Assertions.assertThrows(IllegalStateException.class, pool::take);
+        }
+    }
+
+    private static void awaitQueueDepth(final KeyPreDerivationPool pool, final int depth) throws InterruptedException {
+        final long deadline = System.nanoTime() + 30_000_000_000L;
+        while (pool.getQueueDepth() < depth && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Assertions.assertEquals(depth, pool.getQueueDepth());
+    }
+}
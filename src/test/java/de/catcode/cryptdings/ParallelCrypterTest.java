@@ -0,0 +1,118 @@
+package de.catcode.cryptdings;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+
+class ParallelCrypterTest {
+
+    private final Crypter crypter = new Crypter();
+    private final ExecutorService executorService = Executors.newFixedThreadPool(4);
+    // kleine Segmente und wenige Segmente in Arbeit, damit die Warteschlange auch wirklich voll läuft.
+    private final ParallelCrypter parallelCrypter = new ParallelCrypter(crypter, executorService, 1000, 3);
+
+    @AfterEach
+    void shutdown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    void testParallelIsCompatibleWithSequential() {
+        final byte[] salt = crypter.generateRandomSalt();
+        final SecretKey secretKey = crypter.deriveFromPassword("test123", salt);
+
+        for (final int length : new int[]{0, 999, 1000, 1001, 25_000}) {
+            final byte[] content = new byte[length];
+            new Random(length).nextBytes(content);
+
+            // parallel verschlüsselt, sequenziell entschlüsselt
+            final ByteArrayOutputStream parallelEncrypted = new ByteArrayOutputStream();
+            parallelCrypter.encrypt(new ByteArrayInputStream(content), parallelEncrypted, secretKey, salt);
+            final ByteArrayOutputStream sequentialDecrypted = new ByteArrayOutputStream();
+            crypter.decrypt(new ByteArrayInputStream(parallelEncrypted.toByteArray()), sequentialDecrypted, "test123");
+            Assertions.assertArrayEquals(content, sequentialDecrypted.toByteArray());
+
+            // sequenziell verschlüsselt, parallel entschlüsselt
+            final ByteArrayOutputStream sequentialEncrypted = new ByteArrayOutputStream();
+            crypter.encryptSegmented(new ByteArrayInputStream(content), sequentialEncrypted, secretKey, salt, 700);
+            final ByteArrayOutputStream parallelDecrypted = new ByteArrayOutputStream();
+            parallelCrypter.decrypt(new ByteArrayInputStream(sequentialEncrypted.toByteArray()), parallelDecrypted, "test123");
+            Assertions.assertArrayEquals(content, parallelDecrypted.toByteArray());
+        }
+    }
+
+    @Test
+    void testHeaderRecordsIterationsOfKey() throws IOException {
+        final Crypter fastCrypter = new Crypter(1000, null);
+        final byte[] salt = fastCrypter.generateRandomSalt();
+        final SecretKey secretKey = fastCrypter.deriveFromPassword("test123", salt);
+        final byte[] content = new byte[5000];
+        new Random(5000).nextBytes(content);
+
+        final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        parallelCrypter.encrypt(new ByteArrayInputStream(content), encrypted, secretKey, salt);
+        Assertions.assertEquals(1000, CiphertextHeader.read(new ByteArrayInputStream(encrypted.toByteArray())).iterations());
+
+        final ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        parallelCrypter.decrypt(new ByteArrayInputStream(encrypted.toByteArray()), decrypted, "test123");
+        Assertions.assertArrayEquals(content, decrypted.toByteArray());
+    }
+
+    @Test
+    void testParallelWithCompression() {
+        final Crypter compressingCrypter = new Crypter(1000, null, Deflater.DEFAULT_COMPRESSION);
+        final ParallelCrypter compressingParallelCrypter = new ParallelCrypter(compressingCrypter, executorService, 1000, 3);
+        final byte[] salt = compressingCrypter.generateRandomSalt();
+        final SecretKey secretKey = compressingCrypter.deriveFromPassword("test123", salt);
+        final byte[] content = "{\"id\": 42, \"name\": \"cryptdings\"}\n".repeat(2000).getBytes(StandardCharsets.UTF_8);
+
+        final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        compressingParallelCrypter.encrypt(new ByteArrayInputStream(content), encrypted, secretKey, salt);
+        Assertions.assertTrue(encrypted.size() < content.length / 10);
+
+        final ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        parallelCrypter.decrypt(new ByteArrayInputStream(encrypted.toByteArray()), decrypted, "test123");
+        Assertions.assertArrayEquals(content, decrypted.toByteArray());
+    }
+
+    @Test
+    void testParallelDecryptReadsLegacyFormat() {
+        final byte[] salt = crypter.generateRandomSalt();
+        final SecretKey secretKey = crypter.deriveFromPassword("test123", salt);
+        final byte[] content = new byte[5000];
+        new Random(42).nextBytes(content);
+
+        final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        crypter.encrypt(new ByteArrayInputStream(content), encrypted, secretKey, salt);
+        final ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        parallelCrypter.decrypt(new ByteArrayInputStream(encrypted.toByteArray()), decrypted, "test123");
+
+        Assertions.assertArrayEquals(content, decrypted.toByteArray());
+    }
+
+    @Test
+    void testParallelDecryptDetectsTruncation() throws IOException {
+        final byte[] salt = crypter.generateRandomSalt();
+        final SecretKey secretKey = crypter.deriveFromPassword("test123", salt);
+        final byte[] content = new byte[10_000];
+
+        final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        parallelCrypter.encrypt(new ByteArrayInputStream(content), encrypted, secretKey, salt);
+        final int headerLength = CiphertextHeader.read(new ByteArrayInputStream(encrypted.toByteArray())).length();
+        final byte[] truncated = Arrays.copyOf(encrypted.toByteArray(), headerLength + 5 * 1016);
+
+        Assertions.assertThrows(RuntimeException.class,
+                () -> parallelCrypter.decrypt(new ByteArrayInputStream(truncated), new ByteArrayOutputStream(), "test123"));
+    }
+}
@@ -0,0 +1,106 @@
+package de.catcode.cryptdings;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+class SegmentedFileReaderTest {
+
+    private static final int SEGMENT_SIZE = 100;
+
+    private final Crypter crypter = new Crypter();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testReadRanges() throws IOException {
+        final byte[] content = randomContent(1234);
+        final Path file = encrypt(content);
+
+        try (final SegmentedFileReader reader = new SegmentedFileReader(crypter, FileChannel.open(file), "test123")) {
+            Assertions.assertEquals(content.length, reader.size());
+            // innerhalb eines Segments, über Segmentgrenzen, bis über das Ende hinaus
+            Assertions.assertArrayEquals(Arrays.copyOfRange(content, 10, 20), reader.read(10, 10));
+            Assertions.assertArrayEquals(Arrays.copyOfRange(content, 95, 405), reader.read(95, 310));
+            Assertions.assertArrayEquals(Arrays.copyOfRange(content, 1200, 1234), reader.read(1200, 100));
+            Assertions.assertArrayEquals(new byte[0], reader.read(5000, 10));
+        }
+    }
+
+    @Test
+    void testReadAsChannel() throws IOException {
+        final byte[] content = randomContent(SEGMENT_SIZE * 5);
+        final Path file = encrypt(content);
+
+        try (final SegmentedFileReader reader = new SegmentedFileReader(crypter, FileChannel.open(file), "test123")) {
+            reader.position(450);
+            final ByteBuffer buffer = ByteBuffer.allocate(30);
+            Assertions.assertEquals(30, reader.read(buffer));
+            Assertions.assertArrayEquals(Arrays.copyOfRange(content, 450, 480), buffer.array());
+            Assertions.assertEquals(480, reader.position());
+
+            buffer.clear();
+            Assertions.assertEquals(20, reader.read(buffer));
+            buffer.clear();
+            Assertions.assertEquals(-1, reader.read(buffer));
+        }
+    }
+
+    @Test
+    void testEmptyContent() throws IOException {
+        final Path file = encrypt(new byte[0]);
+
+        try (final SegmentedFileReader reader = new SegmentedFileReader(crypter, FileChannel.open(file), "test123")) {
+            Assertions.assertEquals(0, reader.size());
+            Assertions.assertEquals(-1, reader.read(ByteBuffer.allocate(10)));
+        }
+    }
+
+    @Test
+    void testDetectsTruncation() throws IOException {
+        final byte[] content = randomContent(1000);
+        final Path file = encrypt(content);
+        // die letzten beiden Segmente abschneiden
+        final int headerLength;
+        try (final InputStream inputStream = Files.newInputStream(file)) {
+            headerLength = CiphertextHeader.read(inputStream).length();
+        }
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(headerLength + 8L * (SEGMENT_SIZE + SegmentedFormat.TAG_LENGTH));
+        }
+
+        try (final SegmentedFileReader reader = new SegmentedFileReader(crypter, FileChannel.open(file), "test123")) {
+            // vordere Segmente sind weiterhin lesbar
+            Assertions.assertArrayEquals(Arrays.copyOfRange(content, 0, 10), reader.read(0, 10));
+            Assertions.assertThrows(RuntimeException.class, () -> reader.read(750, 10));
+        }
+    }
+
+    private Path encrypt(final byte[] content) throws IOException {
+        final byte[] salt = crypter.generateRandomSalt();
+        final SecretKey secretKey = crypter.deriveFromPassword("test123", salt);
+        final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        crypter.encryptSegmented(new ByteArrayInputStream(content), encrypted, secretKey, salt, SEGMENT_SIZE);
+        return Files.write(Files.createTempFile(tempDir, "segmented", ".enc"), encrypted.toByteArray());
+    }
+
+    private static byte[] randomContent(final int length) {
+        final byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        return content;
+    }
+}